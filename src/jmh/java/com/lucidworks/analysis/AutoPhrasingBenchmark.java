@@ -0,0 +1,151 @@
+package com.lucidworks.analysis;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Analyzes documents with AutoPhrasingAnalyzer, for every combination of the parameters below.
+ *
+ * Subclasses pick the documents: {@link Index} analyzes long documents the way they are indexed,
+ * {@link Query} short queries. Each benchmark reports documents per second (throughput) and the
+ * distribution of the time to analyze one document (sample), the tokens counter gives tokens per
+ * second.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class AutoPhrasingBenchmark {
+
+    // the number of documents analyzed in turn, so a benchmark does not run on a single document
+    private static final int DOCUMENTS = 64;
+
+    @Param({"TRIE", "FST"})
+    public PhraseDictionary.Type dictionaryType;
+
+    @Param({"1000", "100000"})
+    public int dictionarySize;
+
+    @Param({"1", "20"})
+    public int phrasesPerFirstWord;
+
+    @Param({"0", "0.1"})
+    public double wildcardDensity;
+
+    @Param({"0.01", "0.2"})
+    public double hitRate;
+
+    private AutoPhrasingAnalyzer analyzer;
+    private String[] documents;
+    private int next;
+
+    /**
+     * Counts the tokens the filter emitted, reported as tokens per second next to the results.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class TokenCounter {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            tokens = 0;
+        }
+    }
+
+    /**
+     * @return the number of positions of the documents
+     */
+    protected abstract int getDocumentLength();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkCorpus corpus = new BenchmarkCorpus(dictionarySize, phrasesPerFirstWord, wildcardDensity);
+        analyzer = new AutoPhrasingAnalyzer(corpus.compile(dictionaryType), '_');
+        analyzer.setStreaming(true);
+        documents = new String[DOCUMENTS];
+        for (int i = 0; i < documents.length; i++) {
+            documents[i] = corpus.document(getDocumentLength(), hitRate);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        analyzer.close();
+    }
+
+    protected long analyze(Blackhole blackhole) throws IOException {
+        String document = documents[next];
+        next = (next + 1) % documents.length;
+
+        long tokens = 0;
+        // reuses the token stream of the thread, like IndexWriter and the query parsers do
+        try (TokenStream stream = analyzer.tokenStream("field", document)) {
+            CharTermAttribute termAttr = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                blackhole.consume(termAttr);
+                tokens++;
+            }
+            stream.end();
+        }
+        return tokens;
+    }
+
+    /**
+     * Index time path: whole documents.
+     */
+    @State(Scope.Thread)
+    public static class Index extends AutoPhrasingBenchmark {
+        @Param({"100", "1000", "10000"})
+        public int documentLength;
+
+        @Override
+        protected int getDocumentLength() {
+            return documentLength;
+        }
+
+        @Benchmark
+        public void analyzeDocument(TokenCounter counter, Blackhole blackhole) throws IOException {
+            counter.tokens += analyze(blackhole);
+        }
+    }
+
+    /**
+     * Query time path: queries of a few words, where the cost of reset() and of the first
+     * lookups dominates.
+     */
+    @State(Scope.Thread)
+    public static class Query extends AutoPhrasingBenchmark {
+        @Param({"2", "5"})
+        public int documentLength;
+
+        @Override
+        protected int getDocumentLength() {
+            return documentLength;
+        }
+
+        @Benchmark
+        public void analyzeQuery(TokenCounter counter, Blackhole blackhole) throws IOException {
+            counter.tokens += analyze(blackhole);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.lucidworks.analysis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.lucene.analysis.CharArraySet;
+
+/**
+ * Generates the phrases and documents the benchmarks run on, from a fixed seed so every run and
+ * every dictionary type sees the same input.
+ *
+ * Phrases are 2 to 4 words long. Their first words are drawn from dictionarySize /
+ * phrasesPerFirstWord distinct words, so phrasesPerFirstWord controls how many phrases share a
+ * prefix, and each following word is a TOKEN? wildcard with probability wildcardDensity. Documents
+ * are filler words that are never part of a phrase, with a whole phrase inserted at each position
+ * with probability hitRate, and a lone first word of a phrase (a partial match) with the same
+ * probability.
+ */
+final class BenchmarkCorpus {
+
+    private static final long SEED = 0x5eed;
+
+    private final Random random = new Random(SEED);
+    private final List<String[]> phrases;
+    private final String[] firstWords;
+
+    BenchmarkCorpus(int dictionarySize, int phrasesPerFirstWord, double wildcardDensity) {
+        firstWords = new String[Math.max(1, dictionarySize / phrasesPerFirstWord)];
+        for (int i = 0; i < firstWords.length; i++) {
+            firstWords[i] = "first" + i;
+        }
+        phrases = new ArrayList<>(dictionarySize);
+        for (int i = 0; i < dictionarySize; i++) {
+            String[] phrase = new String[2 + random.nextInt(3)];
+            phrase[0] = firstWords[i % firstWords.length];
+            for (int j = 1; j < phrase.length; j++) {
+                phrase[j] = random.nextDouble() < wildcardDensity
+                        ? AutoPhrasingTokenFilter.WILDCARD_TOKEN
+                        : "word" + random.nextInt(Math.max(16, dictionarySize / 4));
+            }
+            phrases.add(phrase);
+        }
+    }
+
+    CharArraySet getPhrases() {
+        CharArraySet phraseSet = new CharArraySet(phrases.size(), false);
+        for (String[] phrase : phrases) {
+            phraseSet.add(String.join(" ", phrase));
+        }
+        return phraseSet;
+    }
+
+    PhraseDictionary compile(PhraseDictionary.Type type) throws IOException {
+        if (type == PhraseDictionary.Type.FST) {
+            return new FSTPhraseDictionary(getPhrases(), '_');
+        }
+        return new PhraseTrie(getPhrases(), '_');
+    }
+
+    /**
+     * @param length   the number of positions of the document, a phrase counts as one position
+     * @param hitRate  the probability a position starts a phrase
+     * @return whitespace separated tokens
+     */
+    String document(int length, double hitRate) {
+        StringBuilder document = new StringBuilder(length * 8);
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                document.append(' ');
+            }
+            double draw = random.nextDouble();
+            if (draw < hitRate) {
+                String[] phrase = phrases.get(random.nextInt(phrases.size()));
+                for (int j = 0; j < phrase.length; j++) {
+                    if (j > 0) {
+                        document.append(' ');
+                    }
+                    // a wildcard matches any single token
+                    document.append(phrase[j] == AutoPhrasingTokenFilter.WILDCARD_TOKEN ? "any" : phrase[j]);
+                }
+            } else if (draw < 2 * hitRate) {
+                document.append(firstWords[random.nextInt(firstWords.length)]);
+            } else {
+                document.append("filler").append(random.nextInt(10000));
+            }
+        }
+        return document.toString();
+    }
+}
@@ -35,7 +35,10 @@ import java.io.StringReader;
 public class AutoPhrasingAnalyzer extends Analyzer {
 
     private CharArraySet phraseSets;
+    private PhraseDictionary phraseDictionary;
     private Character replaceWhitespaceWith = null;
+    private boolean streaming = false;
+    private boolean includeTokens = false;
 
     public AutoPhrasingAnalyzer(CharArraySet phraseSets) {
         this(phraseSets, null);
@@ -49,9 +52,23 @@ public class AutoPhrasingAnalyzer extends Analyzer {
      */
     public AutoPhrasingAnalyzer(CharArraySet phraseSets, Character replaceWhitespaceWith) {
         this.phraseSets = phraseSets;
+        // compiled once, every token stream of this analyzer shares it
+        this.phraseDictionary = new PhraseTrie(phraseSets, replaceWhitespaceWith);
         this.replaceWhitespaceWith = replaceWhitespaceWith;
     }
     
+    /**
+     * Construct a new analyzer that uses WhitespaceTokenizer, with a single filter 'AutoPhrasingTokenFilter'
+     * matching an already compiled phrase dictionary.
+     * 
+     * @param phraseDictionary 
+     * @param replaceWhitespaceWith 
+     */
+    public AutoPhrasingAnalyzer(PhraseDictionary phraseDictionary, Character replaceWhitespaceWith) {
+        this.phraseDictionary = phraseDictionary;
+        this.replaceWhitespaceWith = replaceWhitespaceWith;
+    }
+
     /**
      * Return the phrase set this analyzer was constructed with.
      * 
@@ -60,6 +77,15 @@ public class AutoPhrasingAnalyzer extends Analyzer {
     public CharArraySet getPhraseSets() {
         return this.phraseSets;
     }
+
+    /**
+     * Return the compiled phrase dictionary shared by the token streams of this analyzer.
+     * 
+     * @return 
+     */
+    public PhraseDictionary getPhraseDictionary() {
+        return this.phraseDictionary;
+    }
     
     /**
      * 
@@ -70,13 +96,32 @@ public class AutoPhrasingAnalyzer extends Analyzer {
         return this.replaceWhitespaceWith;
     }
 
+    /**
+     * Use the filters streaming mode, must be called before the first token stream is created.
+     * 
+     * @param streaming 
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Emit the tokens of phrases too, must be called before the first token stream is created.
+     * 
+     * @param includeTokens 
+     */
+    public void setIncludeTokens(boolean includeTokens) {
+        this.includeTokens = includeTokens;
+    }
+
     @Override
     protected TokenStreamComponents createComponents(String s) {
         Tokenizer tokenizer = new WhitespaceTokenizer();
         tokenizer.setReader(new StringReader(s));
-        AutoPhrasingTokenFilter tokenFilter =
-                new AutoPhrasingTokenFilter(tokenizer, phraseSets);
+        AutoPhrasingTokenFilter tokenFilter = new AutoPhrasingTokenFilter(tokenizer, phraseDictionary);
         tokenFilter.setReplaceWhitespaceWith(replaceWhitespaceWith);
+        tokenFilter.setStreaming(streaming);
+        tokenFilter.setIncludeTokens(includeTokens);
         return new TokenStreamComponents(tokenizer, tokenFilter);
     }
 }
@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 ben.demott.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.lucidworks.analysis;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the filters of one AutoPhrasingTokenFilterFactory did, summed over all of them.
+ *
+ * A filter counts in plain fields while it runs and adds its counts here once per stream, in
+ * end(), so the analysis path does not touch shared state per token. The counters are striped,
+ * indexing threads adding their counts at the same time do not contend on them.
+ *
+ * Registered in the metrics registry of the core by AutoPhrasingMetricsComponent, as:
+ * <ul>
+ * <li>tokensIn, tokensOut: the tokens read from the input, and emitted</li>
+ * <li>phrasesEmitted: the phrase tokens emitted</li>
+ * <li>candidates: the candidate phrases the matcher evaluated, see PhraseMatcher#getCandidates()</li>
+ * <li>wildcardExpansions: the times a TOKEN? wildcard consumed or skipped a token</li>
+ * <li>bufferHighWaterMark: the largest number of tokens a filter buffered at once</li>
+ * <li>documents: the distribution of the lifetime of a stream, from reset() to end(). It includes
+ * the time the tokenizer and the filters before this one take to produce the tokens, and the time
+ * the consumer takes between two of them, not only the work of this filter.</li>
+ * </ul>
+ */
+public final class AutoPhrasingMetrics implements MetricSet {
+
+    private final LongAdder tokensIn = new LongAdder();
+    private final LongAdder tokensOut = new LongAdder();
+    private final LongAdder phrasesEmitted = new LongAdder();
+    private final LongAdder candidates = new LongAdder();
+    private final LongAdder wildcardExpansions = new LongAdder();
+    private final LongAccumulator bufferHighWaterMark = new LongAccumulator(Math::max, 0);
+    private final Timer documents = new Timer();
+
+    /**
+     * Add the counts of one stream.
+     */
+    void record(long tokensIn, long tokensOut, long phrasesEmitted, long candidates,
+                long wildcardExpansions, int bufferedTokens, long nanos) {
+        this.tokensIn.add(tokensIn);
+        this.tokensOut.add(tokensOut);
+        this.phrasesEmitted.add(phrasesEmitted);
+        this.candidates.add(candidates);
+        this.wildcardExpansions.add(wildcardExpansions);
+        this.bufferHighWaterMark.accumulate(bufferedTokens);
+        this.documents.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getTokensIn() {
+        return tokensIn.sum();
+    }
+
+    public long getTokensOut() {
+        return tokensOut.sum();
+    }
+
+    public long getPhrasesEmitted() {
+        return phrasesEmitted.sum();
+    }
+
+    public long getCandidates() {
+        return candidates.sum();
+    }
+
+    public long getWildcardExpansions() {
+        return wildcardExpansions.sum();
+    }
+
+    public long getBufferHighWaterMark() {
+        return bufferHighWaterMark.get();
+    }
+
+    /**
+     * @return the lifetime of the streams, from reset() to end(), consumer and upstream time included
+     */
+    public Timer getDocuments() {
+        return documents;
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new LinkedHashMap<>();
+        metrics.put("tokensIn", (Gauge<Long>) this::getTokensIn);
+        metrics.put("tokensOut", (Gauge<Long>) this::getTokensOut);
+        metrics.put("phrasesEmitted", (Gauge<Long>) this::getPhrasesEmitted);
+        metrics.put("candidates", (Gauge<Long>) this::getCandidates);
+        metrics.put("wildcardExpansions", (Gauge<Long>) this::getWildcardExpansions);
+        metrics.put("bufferHighWaterMark", (Gauge<Long>) this::getBufferHighWaterMark);
+        metrics.put("documents", documents);
+        return Collections.unmodifiableMap(metrics);
+    }
+}
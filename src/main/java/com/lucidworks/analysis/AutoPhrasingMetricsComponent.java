@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 ben.demott.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.lucidworks.analysis;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
+import org.apache.lucene.util.Accountable;
+import org.apache.solr.analysis.TokenizerChain;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.metrics.SolrMetricManager;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.util.plugin.SolrCoreAware;
+
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Registers the metrics of every AutoPhrasingTokenFilterFactory of the schema in the metrics
+ * registry of the core, which Solr does not do for analysis factories. It takes part in no
+ * request, declaring it in solrconfig.xml is enough:
+ *
+ * <pre>
+ * &lt;searchComponent name="autoPhrasingMetrics" class="com.lucidworks.analysis.AutoPhrasingMetricsComponent"/&gt;
+ * </pre>
+ *
+ * The metrics of a field type are then under ANALYSIS.autoPhrasing.&lt;field type&gt;, or
+ * ANALYSIS.autoPhrasing.&lt;field type&gt;.index and .query when the index and query analyzers
+ * differ. See AutoPhrasingMetrics for the metrics themselves.
+ *
+ * The statistics of the component, listed by the mbeans admin handler
+ * (/admin/mbeans?stats=true&amp;key=autoPhrasingMetrics), break down the heap used by the filters
+ * of each scope: their dictionary, its structures, and the output cache.
+ */
+public class AutoPhrasingMetricsComponent extends SearchComponent implements SolrCoreAware {
+
+    private volatile SolrCore core;
+
+    @Override
+    public void inform(SolrCore core) {
+        this.core = core;
+        SolrMetricManager manager = core.getCoreDescriptor().getCoreContainer().getMetricManager();
+        String registry = core.getCoreMetricManager().getRegistryName();
+        forEachFactory(core.getLatestSchema(), (scope, factory) -> factory.initializeMetrics(manager, registry, scope));
+    }
+
+    /**
+     * Call action with every AutoPhrasingTokenFilterFactory of the schema, along with its scope:
+     * the name of its field type, followed by .index or .query when the index and query
+     * analyzers of the field type differ.
+     */
+    static void forEachFactory(IndexSchema schema, BiConsumer<String, AutoPhrasingTokenFilterFactory> action) {
+        for (Map.Entry<String, FieldType> fieldType : schema.getFieldTypes().entrySet()) {
+            Analyzer indexAnalyzer = fieldType.getValue().getIndexAnalyzer();
+            Analyzer queryAnalyzer = fieldType.getValue().getQueryAnalyzer();
+            if (indexAnalyzer == queryAnalyzer) {
+                forEachFactory(fieldType.getKey(), indexAnalyzer, action);
+            } else {
+                forEachFactory(fieldType.getKey() + ".index", indexAnalyzer, action);
+                forEachFactory(fieldType.getKey() + ".query", queryAnalyzer, action);
+            }
+        }
+    }
+
+    private static void forEachFactory(String scope, Analyzer analyzer, BiConsumer<String, AutoPhrasingTokenFilterFactory> action) {
+        if (!(analyzer instanceof TokenizerChain)) {
+            return;
+        }
+        for (TokenFilterFactory factory : ((TokenizerChain) analyzer).getTokenFilterFactories()) {
+            if (factory instanceof AutoPhrasingTokenFilterFactory) {
+                action.accept(scope, (AutoPhrasingTokenFilterFactory) factory);
+            }
+        }
+    }
+
+    /**
+     * @return the heap used by the filters of each scope, as ramBytesUsed followed by that of each
+     *         of their child resources, in turn broken down the same way
+     */
+    @Override
+    public NamedList<Object> getStatistics() {
+        NamedList<Object> statistics = new SimpleOrderedMap<>();
+        if (core != null) {
+            forEachFactory(core.getLatestSchema(), (scope, factory) -> statistics.add(scope, ramUsage(factory)));
+        }
+        return statistics;
+    }
+
+    static SimpleOrderedMap<Object> ramUsage(Accountable accountable) {
+        SimpleOrderedMap<Object> usage = new SimpleOrderedMap<>();
+        usage.add("ramBytesUsed", accountable.ramBytesUsed());
+        for (Accountable child : accountable.getChildResources()) {
+            usage.add(child.toString(), ramUsage(child));
+        }
+        return usage;
+    }
+
+    @Override
+    public void prepare(ResponseBuilder rb) {
+    }
+
+    @Override
+    public void process(ResponseBuilder rb) {
+    }
+
+    @Override
+    public String getDescription() {
+        return "Registers the metrics of the auto phrasing token filters";
+    }
+}
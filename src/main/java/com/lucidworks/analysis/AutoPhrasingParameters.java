@@ -37,17 +37,43 @@ public class AutoPhrasingParameters {
     private final String DefaultDownstreamParser = "lucene";
     private final Character DefaultReplaceWhitespaceWith = null;
     private final boolean DefaultIgnoreCase = true;
+    private final PhraseDictionary.Type DefaultDictionaryType = PhraseDictionary.Type.TRIE;
+    private final boolean DefaultStreaming = false;
+    private final boolean DefaultIncludeTokens = false;
+    private final int DefaultReloadInterval = 0;
+    private final int DefaultCompileThreads = 1;
+    private final boolean DefaultCountPhraseHits = false;
+    private final int DefaultCacheSize = 1024;
+    private final int DefaultOutputCacheSize = 0;
     public AutoPhrasingParameters(SolrParams solrParams) {
         if (solrParams == null) {
             downstreamParser = DefaultDownstreamParser;
             replaceWhitespaceWith = DefaultReplaceWhitespaceWith;
             ignoreCase = DefaultIgnoreCase;
             phraseSetFiles = null;
+            dictionaryType = DefaultDictionaryType;
+            streaming = DefaultStreaming;
+            includeTokens = DefaultIncludeTokens;
+            reloadInterval = DefaultReloadInterval;
+            compiledPhrases = null;
+            compileThreads = DefaultCompileThreads;
+            countPhraseHits = DefaultCountPhraseHits;
+            cacheSize = DefaultCacheSize;
+            outputCacheSize = DefaultOutputCacheSize;
         } else {
             setDownstreamParser(solrParams.get("defType", DefaultDownstreamParser));
             setReplaceWhitespaceWith(solrParams.get("replaceWhitespaceWith", null));
             setIgnoreCase(solrParams.getBool("ignoreCase", DefaultIgnoreCase));
             setPhraseSetFiles(solrParams.get("phrases"));
+            setDictionaryType(solrParams.get("dictionaryType"));
+            setStreaming(solrParams.getBool("streaming", DefaultStreaming));
+            setIncludeTokens(solrParams.getBool("includeTokens", DefaultIncludeTokens));
+            setReloadInterval(solrParams.getInt("reloadInterval", DefaultReloadInterval));
+            setCompiledPhrases(solrParams.get("compiledPhrases"));
+            setCompileThreads(solrParams.getInt("compileThreads", DefaultCompileThreads));
+            setCountPhraseHits(solrParams.getBool("countPhraseHits", DefaultCountPhraseHits));
+            setCacheSize(solrParams.getInt("cacheSize", DefaultCacheSize));
+            setOutputCacheSize(solrParams.getInt("outputCacheSize", DefaultOutputCacheSize));
         }
     }
 
@@ -107,8 +133,120 @@ public class AutoPhrasingParameters {
         this.downstreamParser = downstreamParser;
     }
 
+    public PhraseDictionary.Type getDictionaryType() {
+        return dictionaryType;
+    }
+
+    /**
+     * Setter for the phrase dictionary implementation, trie (the default) or fst
+     * @param dictionaryType The name of the dictionary implementation, null for the default
+     */
+    public void setDictionaryType(String dictionaryType) {
+        if (dictionaryType != null && dictionaryType.length() > 0)
+            this.dictionaryType = PhraseDictionary.Type.fromString(dictionaryType);
+        else
+            this.dictionaryType = DefaultDictionaryType;
+    }
+
+    public boolean getStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean getIncludeTokens() {
+        return includeTokens;
+    }
+
+    public void setIncludeTokens(boolean includeTokens) {
+        this.includeTokens = includeTokens;
+    }
+
+    public int getReloadInterval() {
+        return reloadInterval;
+    }
+
+    /**
+     * Setter for how often the phrase files are checked for changes
+     * @param reloadInterval The number of seconds between checks, 0 to never reload them
+     */
+    public void setReloadInterval(int reloadInterval) {
+        this.reloadInterval = reloadInterval;
+    }
+
+    public String getCompiledPhrases() {
+        return compiledPhrases;
+    }
+
+    /**
+     * Setter for the binary dictionary file written by PhraseDictionaryCompiler
+     * @param compiledPhrases The path of the file, null to compile the phrase files instead
+     */
+    public void setCompiledPhrases(String compiledPhrases) {
+        this.compiledPhrases = compiledPhrases;
+    }
+
+    public int getCompileThreads() {
+        return compileThreads;
+    }
+
+    /**
+     * Setter for the number of threads compiling the phrase dictionary
+     * @param compileThreads The number of threads, 1 (or less) to compile in the calling thread
+     */
+    public void setCompileThreads(int compileThreads) {
+        this.compileThreads = compileThreads;
+    }
+
+    public boolean getCountPhraseHits() {
+        return countPhraseHits;
+    }
+
+    /**
+     * Setter for counting how often each phrase is emitted
+     * @param countPhraseHits true to count the hits of each phrase
+     */
+    public void setCountPhraseHits(boolean countPhraseHits) {
+        this.countPhraseHits = countPhraseHits;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Setter for the number of phrased queries the query parser keeps
+     * @param cacheSize The number of queries, 0 to phrase every query again
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    public int getOutputCacheSize() {
+        return outputCacheSize;
+    }
+
+    /**
+     * Setter for the number of field values whose filter output is kept to be replayed
+     * @param outputCacheSize The number of field values, 0 to match every field value again
+     */
+    public void setOutputCacheSize(int outputCacheSize) {
+        this.outputCacheSize = outputCacheSize;
+    }
+
     private String downstreamParser;
     private Character replaceWhitespaceWith;
     private boolean ignoreCase;
     private String phraseSetFiles;
+    private PhraseDictionary.Type dictionaryType;
+    private boolean streaming;
+    private boolean includeTokens;
+    private int reloadInterval;
+    private String compiledPhrases;
+    private int compileThreads;
+    private boolean countPhraseHits;
+    private int cacheSize;
+    private int outputCacheSize;
 }
@@ -0,0 +1,279 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 ben.demott.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.lucidworks.analysis;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.util.ResourceLoader;
+import org.apache.lucene.analysis.util.ResourceLoaderAware;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.util.ConcurrentLRUCache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Auto phrases the query string, then hands it to the parser named by defType (lucene by default).
+ *
+ * The query parser splits the query on whitespace before analysis (LUCENE-2605), so the filter
+ * never sees the terms of a phrase together. This parser phrases the runs of plain terms of the
+ * query itself, replacing the whitespace within a phrase with replaceWhitespaceWith ('_' by
+ * default), and leaves the query syntax in place: +/-/! and field prefixes stay on the first term
+ * of a phrase, boosts and closing parentheses on the last, and quoted phrases, ranges, wildcards,
+ * regular expressions, escaped terms and boolean operators are left as they are and end a run.
+ *
+ * It accepts the parameters of AutoPhrasingTokenFilterFactory, and cacheSize: the number of
+ * phrased queries kept in an LRU cache (1024 by default, 0 for none), as the most frequent queries
+ * repeat. The cache is dropped when the phrases are reloaded.
+ */
+public class AutoPhrasingQParserPlugin extends QParserPlugin implements ResourceLoaderAware {
+
+    // operators and a field prefix, the term, and a boost or fuzziness with closing parentheses
+    private static final Pattern TERM = Pattern.compile(
+            "([+\\-!]*\\(*(?:[\\w.]+:\\(*)?)([^\\\\\"*?\\[\\]{}()/:^~]+)((?:[\\^~][\\d.]*)?\\)*)");
+
+    private static final List<String> OPERATORS = Arrays.asList("AND", "OR", "NOT", "TO", "&&", "||");
+
+    /**
+     * The phrased queries of one version of the phrase dictionary.
+     */
+    private static final class PhrasedQueries {
+        final PhraseDictionary dictionary;
+        final ConcurrentLRUCache<String, String> queries;
+
+        PhrasedQueries(PhraseDictionary dictionary, int size) {
+            this.dictionary = dictionary;
+            this.queries = new ConcurrentLRUCache<>(size, Math.max(1, size * 9 / 10));
+        }
+    }
+
+    /**
+     * A term of the query, and the syntax around it.
+     */
+    private static final class Term {
+        final int start;
+        final int end;
+        final String prefix;
+        final String term;
+        final String suffix;
+
+        Term(int start, int end, String prefix, String term, String suffix) {
+            this.start = start;
+            this.end = end;
+            this.prefix = prefix;
+            this.term = term;
+            this.suffix = suffix;
+        }
+    }
+
+    private Map<String, String> args;
+    private AutoPhrasingParameters autoPhrasingParameters;
+    private AutoPhrasingTokenFilterFactory filterFactory;
+    private Analyzer analyzer;
+    private volatile PhrasedQueries phrasedQueries;
+
+    // QParserPlugin declares init with a raw NamedList
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void init(NamedList args) {
+        super.init(args);
+        NamedList<?> initArgs = args;
+        this.args = new HashMap<>();
+        for (int i = 0; i < initArgs.size(); i++) {
+            this.args.put(initArgs.getName(i), String.valueOf(initArgs.getVal(i)));
+        }
+        if (!this.args.containsKey("replaceWhitespaceWith")) {
+            // phrases must not contain whitespace, the downstream parser would split them again
+            this.args.put("replaceWhitespaceWith", "_");
+        }
+        autoPhrasingParameters = new AutoPhrasingParameters(SolrParams.toSolrParams(new NamedList<>(this.args)));
+    }
+
+    @Override
+    public void inform(ResourceLoader loader) throws IOException {
+        Map<String, String> factoryArgs = new HashMap<>(args);
+        // a run is replaced by one token per phrase or term, the tokens of a phrase would be
+        // joined into the query next to it
+        factoryArgs.put("includeTokens", "false");
+        filterFactory = new AutoPhrasingTokenFilterFactory(factoryArgs);
+        filterFactory.inform(loader);
+        analyzer = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                return new TokenStreamComponents(tokenizer, filterFactory.create(tokenizer));
+            }
+        };
+    }
+
+    @Override
+    public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+        String downstreamParser = autoPhrasingParameters.getDownstreamParser();
+        QParserPlugin plugin = req.getCore().getQueryPlugin(downstreamParser);
+        if (plugin == null) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Unknown query parser " + downstreamParser);
+        }
+        return plugin.createParser(qstr == null ? null : phrase(qstr), localParams, params, req);
+    }
+
+    /**
+     * @return the query auto phrased, from the cache when it was phrased recently
+     */
+    String phrase(String query) {
+        int cacheSize = autoPhrasingParameters.getCacheSize();
+        if (cacheSize <= 0) {
+            return phrase(query, analyzer);
+        }
+        PhraseDictionary dictionary = filterFactory.getPhraseDictionary();
+        PhrasedQueries cache = phrasedQueries;
+        if (cache == null || cache.dictionary != dictionary) {
+            cache = new PhrasedQueries(dictionary, cacheSize);
+            phrasedQueries = cache;
+        }
+        String phrased = cache.queries.get(query);
+        if (phrased == null) {
+            phrased = phrase(query, analyzer);
+            cache.queries.put(query, phrased);
+        }
+        return phrased;
+    }
+
+    /**
+     * Auto phrase the runs of plain terms of a query with an analyzer emitting one token per
+     * phrase or single term, leaving the query syntax in place.
+     */
+    static String phrase(String query, Analyzer analyzer) {
+        StringBuilder phrased = new StringBuilder(query.length());
+        List<Term> run = new ArrayList<>();
+        int copied = 0;
+        int i = 0;
+        while (i < query.length()) {
+            if (Character.isWhitespace(query.charAt(i))) {
+                i++;
+                continue;
+            }
+            int end = chunkEnd(query, i);
+            Matcher matcher = TERM.matcher(query).region(i, end);
+            Term term = null;
+            if (matcher.matches() && !OPERATORS.contains(matcher.group(2))) {
+                term = new Term(i, end, matcher.group(1), matcher.group(2), matcher.group(3));
+            }
+            // a phrase may start after operators or a field prefix and end before a boost, not span them
+            if (term == null || !term.prefix.isEmpty() || (!run.isEmpty() && !run.get(run.size() - 1).suffix.isEmpty())) {
+                copied = phraseRun(query, copied, run, analyzer, phrased);
+            }
+            if (term != null) {
+                run.add(term);
+            }
+            i = end;
+        }
+        copied = phraseRun(query, copied, run, analyzer, phrased);
+        return phrased.append(query, copied, query.length()).toString();
+    }
+
+    /**
+     * @return where the chunk of the query starting at start ends: the next whitespace that is
+     *         neither escaped nor quoted
+     */
+    private static int chunkEnd(String query, int start) {
+        int i = start;
+        while (i < query.length() && !Character.isWhitespace(query.charAt(i))) {
+            char c = query.charAt(i++);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                while (i < query.length() && query.charAt(i) != '"') {
+                    i += query.charAt(i) == '\\' ? 2 : 1;
+                }
+                i++;
+            }
+        }
+        return Math.min(i, query.length());
+    }
+
+    /**
+     * Append the query up to the run of terms and the phrased run, then clear the run.
+     *
+     * @return the end of the query appended so far
+     */
+    private static int phraseRun(String query, int copied, List<Term> run, Analyzer analyzer, StringBuilder phrased) {
+        if (run.size() < 2) {
+            run.clear();
+            return copied;
+        }
+        Term first = run.get(0);
+        Term last = run.get(run.size() - 1);
+        phrased.append(query, copied, first.start);
+
+        StringBuilder text = new StringBuilder();
+        int[] starts = new int[run.size()];
+        int[] ends = new int[run.size()];
+        for (int i = 0; i < run.size(); i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            starts[i] = text.length();
+            text.append(run.get(i).term);
+            ends[i] = text.length();
+        }
+
+        try (TokenStream stream = analyzer.tokenStream("", text.toString())) {
+            CharTermAttribute termAttr = stream.addAttribute(CharTermAttribute.class);
+            OffsetAttribute offsetAttr = stream.addAttribute(OffsetAttribute.class);
+            stream.reset();
+            boolean firstToken = true;
+            while (stream.incrementToken()) {
+                int from = Arrays.binarySearch(starts, offsetAttr.startOffset());
+                int to = Arrays.binarySearch(ends, offsetAttr.endOffset());
+                if (!firstToken) {
+                    phrased.append(' ');
+                }
+                firstToken = false;
+                phrased.append(run.get(from < 0 ? Math.max(0, -from - 2) : from).prefix);
+                phrased.append(termAttr.buffer(), 0, termAttr.length());
+                phrased.append(run.get(to < 0 ? Math.min(run.size() - 1, -to - 1) : to).suffix);
+            }
+            stream.end();
+        } catch (IOException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Could not phrase " + query, e);
+        }
+        run.clear();
+        return last.end;
+    }
+}
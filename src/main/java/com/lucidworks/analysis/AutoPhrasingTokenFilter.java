@@ -28,15 +28,12 @@ import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
-import org.apache.lucene.analysis.CharArrayMap;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
 import org.apache.lucene.analysis.CharArraySet;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-
-import static java.lang.System.arraycopy;
+import java.util.Objects;
+import java.util.function.Supplier;
 
 /**
  * Performs "auto phrasing" on a token stream. Auto phrases refer to sequences of tokens that
@@ -51,11 +48,17 @@ import static java.lang.System.arraycopy;
  * The filter will produce single-tokens where no phrase-match was found.  In this case is behaves
  * like a pass-through filter that does not affect tokens or their positions.
  * 
- * Currently does not handle Synonyms correctly, if the input stream contains a synonym that
- * occupies the same position as another token. Both tokens will not be searched for a match...
+ * Phrases are matched along any path of the token graph, so synonyms stacked on the same
+ * position by an upstream filter (a position increment of 0), and multi-position synonyms (a
+ * position length over 1) can start, continue or end a phrase. The tokens a phrase consumed are
+ * not emitted, the tokens stacked with them are, and every token keeps its own position increment
+ * and length: the phrase token takes the place of its first token, positions after it collapse as
+ * they do for a plain stream of tokens.
  * 
- * The original version of this filter supported outputting single-terms alongside phrases for
- * the purposes of having single-terms available to search.  This greatly complicated the filter.
+ * With includeTokens set, the tokens of a phrase are emitted too, and the phrase token is stacked
+ * over them as a proper token graph: it has the position increment of its first token, a position
+ * length covering all of its tokens, and the first token follows it with a position increment of
+ * 0. A single field then serves both phrase and single-term searches, and no position collapses.
  * 
  */
 
@@ -64,24 +67,76 @@ public final class AutoPhrasingTokenFilter extends TokenFilter {
 
     private CharTermAttribute charTermAttr;
     private PositionIncrementAttribute positionIncrementAttr;
+    private PositionLengthAttribute positionLengthAttr;
     private OffsetAttribute offsetAttr;
 
     // replaceWhitespaceWith stores the value passed into this filter during construction,
     // white-space in the token will be replaced with this character. (space) is recommended.
     private Character replaceWhitespaceWith = null;
 
-    // maps the first word in each auto phrase to all phrases that start with that word
-    private final CharArrayMap<CharArraySet> phraseMapFirstWordToPhrases;
-
-    private final ArrayList<char[]> tokenTerms = new ArrayList<>();
-    private final ArrayList<Integer> tokenEndPositions = new ArrayList<>();
-    private final ArrayList<Integer> tokenStartPositions = new ArrayList<>();
-    private final ArrayList<Integer> tokenIncrements = new ArrayList<>();
+    // finds the phrases of the dictionary in the buffered tokens. The dictionary comes from
+    // phraseDictionarySource, which is asked again on each reset() in case a new version of the
+    // dictionary was loaded, a stream always finishes with the version it started with.
+    private final Supplier<PhraseDictionary> phraseDictionarySource;
+    private PhraseDictionary phraseDictionary;
+    private PhraseMatcher phraseMatcher;
+
+    // In streaming mode only a window of tokens is buffered: the current token, and when it can
+    // start a phrase, the positions the longest phrase can span. Emitted tokens are dropped
+    // from the buffer once STREAMING_COMPACT_THRESHOLD of them have accumulated.
+    private boolean streaming = false;
+    private boolean inputExhausted = false;
+    private int bufferHighWaterMark = 0;
+    private int maxPositionLength = 1;
+
+    // Without streaming, false when no buffered token is the term of a phrase: the tokens are
+    // then emitted as they are, without looking for phrases.
+    private boolean documentMayMatch = true;
+
+    // In includeTokens mode the tokens of a phrase are emitted after it, the first one stacked on
+    // the phrase token, so it is emitted next without looking for a phrase again.
+    private boolean includeTokens = false;
+    private boolean phraseEmitted = false;
+    private static final int STREAMING_COMPACT_THRESHOLD = 64;
+
+    // the terms, offsets and position increments of the buffered input tokens
+    private final TokenBuffer tokens = new TokenBuffer();
+
+    // what the current stream did, added to metrics by end() when they are set
+    private AutoPhrasingMetrics metrics;
+    // when reset() started the stream, its whole lifetime up to end() is recorded
+    private long streamStart;
+    private long streamTokensIn;
+    private long streamTokensOut;
+    private long streamPhrasesEmitted;
+    private int streamBufferHighWaterMark;
+
+    // the ordinals of the phrases emitted since they were last added to the hit counts of the
+    // dictionary, only kept when the dictionary counts hits
+    private static final int PHRASE_HITS_BUFFER_SIZE = 64;
+    private PhraseHitCounts hitCounts;
+    private final int[] phraseHits = new int[PHRASE_HITS_BUFFER_SIZE];
+    private int phraseHitCount;
+
+    // Without streaming, a field of few enough tokens is looked up in outputCache once buffered:
+    // the tokens of an entry found are replayed rather than matched again, and otherwise what the
+    // filter emits is recorded and stored when the stream ends.
+    private PhraseOutputCache outputCache;
+    private final PhraseOutputCache.Recorder outputRecorder = new PhraseOutputCache.Recorder();
+    private PhraseOutputCache.Entry replayedOutput;
+    private int replayedTokenIdx;
+    private boolean recordingOutput = false;
+    private int outputHash;
+
+    // the input tokens the last emitted token stands for, and its phrase ordinal (-1 if none)
+    private int emittedFirstTokenIdx;
+    private int emittedLastTokenIdx;
+    private int emittedPhraseOrdinal;
     
     // currentTokenIdx acts as a pointer to the iterator through the input stream.
     // Because streams are state-machines, we need to keep track where we are in the sourc
-    // stream for matching purposes.  We ingest the ENTIRE input stream at once... so we can't use
-    // the streams current state or internal iterator.
+    // stream for matching purposes.  We ingest the ENTIRE input stream at once (or a window of it
+    // in streaming mode)... so we can't use the streams current state or internal iterator.
     private int currentTokenIdx = -1;
     
     // Wildcard tokens can be used to do skip-gram matching.  This token should be present in the
@@ -93,40 +148,30 @@ public final class AutoPhrasingTokenFilter extends TokenFilter {
     public static final String PHRASE_SEPARATOR = " ";
 
     /**
-     * Constructor
+     * Constructor, compiles the phrase set into a {@link PhraseTrie}.
      */
     public AutoPhrasingTokenFilter(TokenStream input, CharArraySet phraseSet) {
-        super(input);
-
-        final int estimatedPhraseMapEntries = 100;
-        phraseMapFirstWordToPhrases =
-                new CharArrayMap<>(estimatedPhraseMapEntries, false);
+        this(input, new PhraseTrie(phraseSet));
+    }
 
-        this.currentTokenIdx = -1;
-        initializePhraseMap(phraseSet);
-        initializeAttributes();
+    /**
+     * Constructor
+     */
+    public AutoPhrasingTokenFilter(TokenStream input, PhraseDictionary phraseDictionary) {
+        this(input, () -> phraseDictionary);
     }
 
     /**
-     * Build a data structure that maps the first term in each phrase to the full phrase.
-     * You can think of this as a simplistic trie structure (even though its not) to find
-     * matches by prefix.
-     * 
-     * @param phraseSet 
+     * Constructor, for a dictionary that can be reloaded, see {@link PhraseDictionaryReloader}.
      */
-    private void initializePhraseMap(CharArraySet phraseSet) {
-        final int EstimatedPhrasesPerFirstWord = 5;
-
-        for (Object aPhrase : phraseSet) {
-            char[] phrase = (char[])aPhrase;
-            char[] firstWord = CharArrayUtil.getFirstTerm(phrase);
-            CharArraySet phrases = phraseMapFirstWordToPhrases.get(firstWord, 0, firstWord.length);
-            if (phrases == null) {
-                phrases = new CharArraySet(EstimatedPhrasesPerFirstWord, false);
-                phraseMapFirstWordToPhrases.put(firstWord, phrases);
-            }
-            phrases.add(phrase);
-        }
+    public AutoPhrasingTokenFilter(TokenStream input, Supplier<PhraseDictionary> phraseDictionarySource) {
+        super(input);
+
+        this.currentTokenIdx = -1;
+        this.phraseDictionarySource = phraseDictionarySource;
+        this.phraseDictionary = phraseDictionarySource.get();
+        this.phraseMatcher = phraseDictionary.newMatcher();
+        initializeAttributes();
     }
 
     
@@ -144,30 +189,72 @@ public final class AutoPhrasingTokenFilter extends TokenFilter {
         // position increment tells us which position in the token stream the token actually
         // occupies, position increments of 0 mean a token is a synonym.
         this.positionIncrementAttr = addAttribute(PositionIncrementAttribute.class);
+        // position length tells us how many positions a token spans, multi-word synonyms span
+        // more than one.
+        this.positionLengthAttr = addAttribute(PositionLengthAttribute.class);
     }
     
     
     /**
-     * Construct data sets that will cache token attributes on the input stream.
+     * Cache the attributes of input tokens until size tokens are buffered or the input is
+     * exhausted.
+     */
+    private void fillBuffer(int size) throws IOException {
+        while (!inputExhausted && tokens.size() < size) {
+            if (!input.incrementToken()) {
+                inputExhausted = true;
+                break;
+            }
+
+            // The term buffer is reused by the input stream, so the term is copied into the
+            // token buffer.
+            tokens.add(charTermAttr.buffer(), charTermAttr.length(), offsetAttr.startOffset(),
+                    offsetAttr.endOffset(), positionIncrementAttr.getPositionIncrement(),
+                    positionLengthAttr.getPositionLength());
+            maxPositionLength = Math.max(maxPositionLength, positionLengthAttr.getPositionLength());
+            streamTokensIn++;
+
+            phraseMatcher.tokenAdded(tokens);
+        }
+        bufferHighWaterMark = Math.max(bufferHighWaterMark, tokens.size());
+        streamBufferHighWaterMark = Math.max(streamBufferHighWaterMark, tokens.size());
+    }
+
+    /**
+     * Cache input tokens until every token a phrase starting at the token at index could go
+     * through is buffered, along with the first token past them, or the input is exhausted.
+     */
+    private void fillWindow(int index) throws IOException {
+        while (!inputExhausted && tokens.getPosition(tokens.size() - 1)
+                <= tokens.getPosition(index) + phraseDictionary.getMaxPhraseLength() * maxPositionLength) {
+            fillBuffer(tokens.size() + 1);
+        }
+    }
+
+    /**
+     * Skip the tokens a phrase already consumed, buffering more tokens in streaming mode.
      */
-    private void initializeInStreamData(TokenStream stream) throws IOException {
-        while(input.incrementToken()) {
-            int startPos = offsetAttr.startOffset();
-            int endPos = offsetAttr.endOffset();
-            int increment = positionIncrementAttr.getPositionIncrement();
-            tokenIncrements.add(increment);
-            tokenStartPositions.add(startPos);
-            tokenEndPositions.add(endPos);
-
-            // Char arrays are not immutable, so make a copy so we don't have to worry about
-            // changes to the input stream.
-            char[] termBuf = charTermAttr.buffer();
-            char[] nextTok = new char[charTermAttr.length()];
-            arraycopy(termBuf, 0, nextTok, 0, charTermAttr.length());
-            tokenTerms.add(nextTok);
+    private void skipConsumedTokens() throws IOException {
+        while (currentTokenIdx < tokens.size() && tokens.isConsumed(currentTokenIdx)) {
+            currentTokenIdx++;
+            if (streaming) {
+                fillBuffer(currentTokenIdx + 1);
+            }
         }
     }
 
+    /**
+     * Drop the tokens that were already emitted from the buffer (streaming mode only).
+     */
+    private void compactBuffer() {
+        if (currentTokenIdx < STREAMING_COMPACT_THRESHOLD) {
+            return;
+        }
+        tokens.removeFirst(currentTokenIdx);
+        phraseMatcher.tokensRemoved(currentTokenIdx);
+        currentTokenIdx = 0;
+    }
+
     /**
      * Set the character used to replace whitespace in output tokens that are phrases
      * 
@@ -177,6 +264,54 @@ public final class AutoPhrasingTokenFilter extends TokenFilter {
         this.replaceWhitespaceWith = replaceWhitespaceWith;
     }
 
+    /**
+     * Enable streaming mode: rather than reading the whole input stream before emitting the first
+     * token, only buffer the tokens a phrase starting at the current token could span, and emit
+     * tokens that cannot start a phrase right away. Memory then depends on the longest phrase in
+     * the dictionary, not on the length of the document. The output is the same in both modes.
+     * 
+     * @param streaming 
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Emit the tokens of each phrase as well, stacked under the phrase token, rather than only
+     * the phrase token.
+     * 
+     * @param includeTokens 
+     */
+    public void setIncludeTokens(boolean includeTokens) {
+        this.includeTokens = includeTokens;
+    }
+
+    /**
+     * Add what each stream did to metrics when it ends, null (the default) to not count anything.
+     * 
+     * @param metrics 
+     */
+    public void setMetrics(AutoPhrasingMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Replay what the filter emitted for short field values it already analyzed, null (the
+     * default) to always match the tokens. Only used without streaming.
+     * 
+     * @param outputCache 
+     */
+    public void setOutputCache(PhraseOutputCache outputCache) {
+        this.outputCache = outputCache;
+    }
+
+    /**
+     * @return the largest number of tokens buffered at once since this filter was created
+     */
+    int getBufferHighWaterMark() {
+        return bufferHighWaterMark;
+    }
+
     /**
      * Reset token stream attributes, this makes the token stream iterable again.
      * 
@@ -184,15 +319,43 @@ public final class AutoPhrasingTokenFilter extends TokenFilter {
      */
     @Override
     public void reset() throws IOException {
-        tokenTerms.clear();
-        tokenEndPositions.clear();
-        tokenStartPositions.clear();
-        tokenIncrements.clear();
+        tokens.clear();
+        // the hits of a stream that did not end still belong to the previous dictionary
+        flushPhraseHits();
+        PhraseDictionary latest = phraseDictionarySource.get();
+        if (latest != phraseDictionary) {
+            phraseDictionary = latest;
+            phraseMatcher = latest.newMatcher();
+        }
+        hitCounts = phraseDictionary.getHitCounts();
+        phraseMatcher.reset();
+        phraseMatcher.clearStatistics();
+        streamTokensIn = 0;
+        streamTokensOut = 0;
+        streamPhrasesEmitted = 0;
+        streamBufferHighWaterMark = 0;
+        streamStart = metrics == null ? 0 : System.nanoTime();
+        inputExhausted = false;
+        maxPositionLength = 1;
+        phraseEmitted = false;
+        documentMayMatch = true;
+        replayedOutput = null;
+        recordingOutput = false;
         currentTokenIdx = -1;
         charTermAttr.setLength(0);
         super.reset();
     }
 
+    @Override
+    public void end() throws IOException {
+        super.end();
+        flushPhraseHits();
+        if (metrics != null) {
+            metrics.record(streamTokensIn, streamTokensOut, streamPhrasesEmitted, phraseMatcher.getCandidates(),
+                    phraseMatcher.getWildcardExpansions(), streamBufferHighWaterMark, System.nanoTime() - streamStart);
+        }
+    }
+
     /**
      * This method is part of the TokenStream api for Solr.
      * This method can be called to increment the internal token attributes
@@ -210,68 +373,109 @@ public final class AutoPhrasingTokenFilter extends TokenFilter {
         
         // We want to collect all the upstream (input) tokens only once.
         if(currentTokenIdx < 0) {
-            initializeInStreamData(input);
             currentTokenIdx = 0;
+            if (!streaming) {
+                fillBuffer(Integer.MAX_VALUE);
+                documentMayMatch = phraseMatcher.mayMatch();
+                if (documentMayMatch && outputCache != null) {
+                    lookupOutput();
+                }
+            }
+        }
+
+        if (replayedOutput != null) {
+            return replayToken();
+        }
+        boolean hasToken = nextToken();
+        if (recordingOutput) {
+            if (hasToken) {
+                outputRecorder.add(charTermAttr.buffer(), charTermAttr.length(), emittedFirstTokenIdx,
+                        emittedLastTokenIdx, positionIncrementAttr.getPositionIncrement(),
+                        positionLengthAttr.getPositionLength(), emittedPhraseOrdinal);
+            } else {
+                recordingOutput = false;
+                outputCache.put(phraseDictionary, outputRecorder.toEntry(outputHash, tokens));
+            }
+        }
+        return hasToken;
+    }
+
+    /**
+     * Find the next token to emit by matching the buffered tokens.
+     */
+    private boolean nextToken() throws IOException {
+        if (streaming) {
+            compactBuffer();
+            fillBuffer(currentTokenIdx + 1);
         }
+        skipConsumedTokens();
         
-        if (currentTokenIdx >= tokenTerms.size() || tokenTerms.isEmpty()) {
+        if (currentTokenIdx >= tokens.size() || tokens.isEmpty()) {
             // we've read all tokens out of the input stream
             return false;
         }
 
-        // Get the first word in the token stream, and check to see if any phrases start with this
-        // word... 
-        char[] firstTerm = tokenTerms.get(currentTokenIdx);
-        CharArraySet potentialPhraseMatches = phraseMapFirstWordToPhrases.get(firstTerm, 0, firstTerm.length);
-
-        if (potentialPhraseMatches == null) {
-            LazyLog.logDebug("No potential phrase matches.");
+        if (phraseEmitted) {
+            // the first token of the phrase just emitted, at the same position
+            phraseEmitted = false;
             emitToken();
+            positionIncrementAttr.setPositionIncrement(0);
             return true;
         }
 
-        // foreach potential phrase match look ahead in the queue and find the first match
-        // remove those, make a phrase and emit it
-        // Phrases can be exact, or can have "TOKEN" to represent a (potentially not present) generic token
-        // so that you can match phrases like pay TOKEN bill on "pay bill," "pay my bill," or "pay your bill."
-        char[] phraseMatch = null;
-        int phraseWordsUsed = 0;
-        for (Object aPotentialPhraseMatch : potentialPhraseMatches) {
-            char[] potentialPhraseMatch = (char[])aPotentialPhraseMatch;
-            String[] potentialPhraseWords = new String(potentialPhraseMatch).split(PHRASE_SEPARATOR);
-
-            //Figure out how many TOKEN options are present, since these are all optional
-            int tokenCount = 0;
-            for (String potentialPhraseWord : potentialPhraseWords) {
-                if (WILDCARD_TOKEN.equalsIgnoreCase(potentialPhraseWord)) {
-                    tokenCount++;
-                }
-            }
+        if (!documentMayMatch) {
+            emitToken();
+            return true;
+        }
 
-            //If the number of non-optional words left in the phrase is longer than the number of unused tokens left,
-            //then it's not possible to match, so go to the next check.
-            if (potentialPhraseWords.length - tokenCount > tokenTerms.size() - currentTokenIdx)
-                continue;
-
-            int potentialPhraseWordsUsed = matches(new ArrayList<>(Arrays.asList(potentialPhraseWords)), tokenTerms.subList(currentTokenIdx, tokenTerms.size()));
-            boolean matches = potentialPhraseWordsUsed > 0;
-            if (matches && (phraseMatch == null || potentialPhraseWordsUsed > phraseWordsUsed)) {
-                potentialPhraseMatch = String.valueOf(potentialPhraseMatch).replaceAll("[tT][oO][kK][eE][nN]\\? ", "").toCharArray();
-                LazyLog.logDebug("Found potential longest phrase match for '%s'.", potentialPhraseMatch);
-                phraseMatch = new char[potentialPhraseMatch.length];
-                arraycopy(potentialPhraseMatch, 0, phraseMatch, 0, potentialPhraseMatch.length);
-                // integer phraseWordsUsed, tells us how many tokens were used from tokenTerms to 
-                // match the longest potential phrase possible.
-                phraseWordsUsed = potentialPhraseWordsUsed;
+        if (streaming) {
+            if (!phraseMatcher.canStartPhrase(tokens, currentTokenIdx)) {
+                LazyLog.logDebug("Token cannot start a phrase, emitting single token.");
+                emitToken();
+                return true;
             }
+            // look ahead as far as the longest phrase starting here could span
+            fillWindow(currentTokenIdx);
         }
-        
+
+        // Find the phrase spanning the most tokens from the current token. Phrases can be exact,
+        // or can have "TOKEN?" to represent a (potentially not present) generic token so that you
+        // can match phrases like pay TOKEN? bill on "pay bill," "pay my bill," or "pay your bill."
+        int phraseWordsUsed = phraseMatcher.longestMatch(tokens, currentTokenIdx);
+        CompiledPhrase phraseMatch = phraseWordsUsed > 0 ? phraseMatcher.getPhrase() : null;
+
         // If we found a phrase match, emit the phrase match
         if (phraseMatch != null) {
-            LazyLog.logDebug("Found phrase match for '%s'.", phraseMatch);
+            LazyLog.logDebug("Found phrase match for '%s'.", phraseMatch.getOutput());
+            streamPhrasesEmitted++;
+            countPhraseHit(phraseMatcher.getPhraseOrdinal());
             
-            // phraseMatch is a new token comprising multiple tokens from the input stream.
-            emitToken(phraseMatch, phraseWordsUsed);
+            // the phrase output is a new token comprising multiple tokens from the input stream,
+            // with its wildcards already stripped when the phrase was compiled. Its whitespace was
+            // replaced at compile time too, unless the dictionary used another character.
+            // The tokens of the phrase path other than the current token are not emitted, unless
+            // they are included, the phrase then spans the positions of all of them.
+            int lastTokenIdx = phraseMatcher.getMatchedToken(phraseWordsUsed - 1);
+            int positionLength = 1;
+            if (includeTokens) {
+                positionLength = tokens.getPosition(lastTokenIdx) + tokens.getPositionLength(lastTokenIdx)
+                        - tokens.getPosition(currentTokenIdx);
+            } else {
+                for (int k = 1; k < phraseWordsUsed; k++) {
+                    tokens.setConsumed(phraseMatcher.getMatchedToken(k));
+                }
+            }
+            if (Objects.equals(replaceWhitespaceWith, phraseDictionary.getReplaceWhitespaceWith())) {
+                emitToken(phraseMatch.getSurfaceForm(), 0, phraseMatch.getSurfaceForm().length, lastTokenIdx, positionLength, false);
+            } else {
+                emitToken(phraseMatch.getOutput(), 0, phraseMatch.getOutput().length, lastTokenIdx, positionLength, true);
+            }
+            emittedPhraseOrdinal = phraseMatcher.getPhraseOrdinal();
+            if (includeTokens) {
+                // the current token is emitted by the next call
+                currentTokenIdx--;
+                phraseEmitted = true;
+            }
             return true;
         }
 
@@ -280,64 +484,69 @@ public final class AutoPhrasingTokenFilter extends TokenFilter {
         return true;
     }
 
-    //Returns the number of the tokenTerms are consumed.  If -1, then there was no match, so none were used.
-    // TODO if we are to use this method, it must use the spanTokens currentTokenIdx...
-    // Because multiple tokens can occupy the same 'position' .. it must also return the indexes of the
-    // tokens it matched on so length and other attributes can be calculated correctly.
-    // ALSO... if this is to calculate matches correctly, it cannot simply assume tokens are sequential
-    // tokens can be synonyms and multiple tokens can occupy the same position... this means that 
-    // for this to work correctly it must consider the token graph correctly. Any token occupying the
-    // current position is a valid consideration.
-    private int matches(List<String> potentialPhraseWords, List<char[]> unusedTokens) {
-        if (potentialPhraseWords == null || unusedTokens == null)
-            return -1;
-
-        //If we've come to the end of the phrase, then it's a match.
-        if (potentialPhraseWords.size() < 1)
-            return 0;
-
-        if (unusedTokens.size() < 1 && potentialPhraseWords.size() >= 1) {
-            for (String potentialPhrase : potentialPhraseWords) {
-                if (!WILDCARD_TOKEN.equalsIgnoreCase(potentialPhrase))
-                    return -1;
+    /**
+     * Look the buffered tokens up in the output cache, replaying the entry found or recording
+     * what is emitted for them.
+     */
+    private void lookupOutput() {
+        if (!outputCache.accepts(tokens)) {
+            return;
+        }
+        outputHash = PhraseOutputCache.hash(tokens);
+        replayedOutput = outputCache.get(phraseDictionary, outputHash, tokens);
+        if (replayedOutput != null) {
+            replayedTokenIdx = 0;
+            for (int ordinal : replayedOutput.getPhraseOrdinals()) {
+                countPhraseHit(ordinal);
             }
-            return 0;
+            streamPhrasesEmitted += replayedOutput.getPhraseOrdinals().length;
+        } else {
+            outputRecorder.clear();
+            recordingOutput = true;
         }
+    }
 
-        if (WILDCARD_TOKEN.equalsIgnoreCase(potentialPhraseWords.get(0))) {
-            //Option 1 is that the TOKEN? is skipped
-            int option1 = matches(potentialPhraseWords.subList(1, potentialPhraseWords.size()), unusedTokens);
-            //Option 2 is that the TOKEN? consumes something in the unused Tokens list
-            int option2 = matches(potentialPhraseWords.subList(1, potentialPhraseWords.size()), unusedTokens.subList(1, unusedTokens.size()));
-            if (option1 < 0 && option2 < 0) {
-                return -1;
-            } else {
-                //Option 1 is that TOKEN? is skipped, so we don't increment the number of tokens "consumed" if we use Option 1.
-                return option1 > option2 ? option1 : option2 + 1;
-            }
+    /**
+     * Emit the next token of the replayed cache entry, with the offsets of the input tokens it
+     * stands for.
+     */
+    private boolean replayToken() {
+        if (replayedTokenIdx >= replayedOutput.size()) {
+            return false;
+        }
+        int i = replayedTokenIdx++;
+        charTermAttr.copyBuffer(replayedOutput.getTerms(), replayedOutput.getTermOffset(i), replayedOutput.getTermLength(i));
+        offsetAttr.setOffset(tokens.getStartOffset(replayedOutput.getFirstToken(i)),
+                tokens.getEndOffset(replayedOutput.getLastToken(i)));
+        positionIncrementAttr.setPositionIncrement(replayedOutput.getPositionIncrement(i));
+        positionLengthAttr.setPositionLength(replayedOutput.getPositionLength(i));
+        streamTokensOut++;
+        return true;
+    }
 
-        } else {
-            if (CharArrayUtil.equals(potentialPhraseWords.get(0).toCharArray(), unusedTokens.get(0))) {
-                int response = matches(potentialPhraseWords.subList(1, potentialPhraseWords.size()), unusedTokens.subList(1, unusedTokens.size()));
-                if (response == -1)
-                    return -1;
-                else
-                    return response + 1;
-
-            } else
-                return -1;
+    private void countPhraseHit(int ordinal) {
+        if (hitCounts != null) {
+            if (phraseHitCount == PHRASE_HITS_BUFFER_SIZE) {
+                flushPhraseHits();
+            }
+            phraseHits[phraseHitCount++] = ordinal;
         }
+    }
 
+    private void flushPhraseHits() {
+        if (phraseHitCount > 0) {
+            hitCounts.add(phraseHits, phraseHitCount);
+            phraseHitCount = 0;
+        }
     }
-    
+
     /**
      * Emit the current token as-is, with its original attributes.
      */
     private void emitToken() {
-        charTermAttr.setEmpty();
-        char[] token = tokenTerms.get(currentTokenIdx);
-
-        emitToken(token, 1);
+        emitToken(tokens.getTermBuffer(), tokens.getTermOffset(currentTokenIdx),
+                tokens.getTermLength(currentTokenIdx), currentTokenIdx,
+                tokens.getPositionLength(currentTokenIdx), true);
     }
 
     /**
@@ -345,28 +554,52 @@ public final class AutoPhrasingTokenFilter extends TokenFilter {
      * It's very important the offsets are set correctly, otherwise the test suite will fail.
      * In Solr 5 changes were made to the automated tests that require the last token end position
      * be equal to the original strings length.
+     * The term is copied straight from buffer to the term attribute, nothing is allocated.
+     * 
+     * @param lastTokenIdx the last buffered token the emitted token stands for
+     * @param replace true if whitespace in the term still has to be replaced
      */
-    private void emitToken(char[] token, int spanTokens) {
-        int lastTokenIdx = currentTokenIdx + spanTokens -1;
-        token = CharArrayUtil.replaceWhitespace(token, replaceWhitespaceWith);
-        
-
-
+    private void emitToken(char[] buffer, int offset, int length, int lastTokenIdx, int positionLength, boolean replace) {
+        int startOffset = tokens.getStartOffset(currentTokenIdx);
+        int endOffset = tokens.getEndOffset(lastTokenIdx);
+        int increment = tokens.getPositionIncrement(currentTokenIdx);
         
-        int startOffset = tokenStartPositions.get(currentTokenIdx);
-        int endOffset = tokenEndPositions.get(lastTokenIdx);
-        int increment = tokenIncrements.get(currentTokenIdx);
-        
-        // Reset the term length
-        charTermAttr.setEmpty(); // may not be needed...
-        charTermAttr.resizeBuffer(token.length);
         // Copies the contents of buffer, starting at offset for length characters, into the termBuffer array.
-        charTermAttr.copyBuffer(token, 0, token.length);
+        charTermAttr.copyBuffer(buffer, offset, length);
+        if (replace) {
+            replaceWhitespace();
+        }
         offsetAttr.setOffset(startOffset, endOffset);
         positionIncrementAttr.setPositionIncrement(increment);
+        positionLengthAttr.setPositionLength(positionLength);
+        emittedFirstTokenIdx = currentTokenIdx;
+        emittedLastTokenIdx = lastTokenIdx;
+        emittedPhraseOrdinal = -1;
         
-        LazyLog.logDebug("Emitting token: %s, cidx:%d lidx: %d", token, currentTokenIdx, lastTokenIdx);
+        LazyLog.logDebug("Emitting token: %s, cidx:%d lidx: %d", charTermAttr, currentTokenIdx, lastTokenIdx);
         
-        currentTokenIdx += Math.max(spanTokens, 1);
+        // the other tokens of a phrase were marked consumed, they are skipped by the next call
+        currentTokenIdx++;
+        streamTokensOut++;
+    }
+
+    /**
+     * Replace (or drop, if no replacement is set) the spaces of the term attribute in place.
+     */
+    private void replaceWhitespace() {
+        if (replaceWhitespaceWith != null && replaceWhitespaceWith == ' ') {
+            return;
+        }
+        char[] term = charTermAttr.buffer();
+        int length = charTermAttr.length();
+        int destination = 0;
+        for (int source = 0; source < length; source++) {
+            if (term[source] != ' ') {
+                term[destination++] = term[source];
+            } else if (replaceWhitespaceWith != null) {
+                term[destination++] = replaceWhitespaceWith;
+            }
+        }
+        charTermAttr.setLength(destination);
     }
 }
\ No newline at end of file
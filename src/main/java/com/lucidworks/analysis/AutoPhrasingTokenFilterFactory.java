@@ -23,45 +23,386 @@
  */
 package com.lucidworks.analysis;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
 import org.apache.lucene.analysis.TokenStream;
 //import org.apache.lucene.analysis.util.CharArraySet; DEPRECATED
 import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.WordlistLoader;
 import org.apache.lucene.analysis.util.ResourceLoader;
 import org.apache.lucene.analysis.util.ResourceLoaderAware;
 import org.apache.lucene.analysis.util.TokenFilterFactory;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Accountables;
+import org.apache.solr.cloud.ZkSolrResourceLoader;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrResourceLoader;
+import org.apache.solr.metrics.SolrMetricManager;
+import org.apache.solr.metrics.SolrMetricProducer;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.CRC32;
 
-public class AutoPhrasingTokenFilterFactory extends TokenFilterFactory implements ResourceLoaderAware {
+public class AutoPhrasingTokenFilterFactory extends TokenFilterFactory implements ResourceLoaderAware, SolrMetricProducer, Accountable {
+    private static final Logger LOG = LoggerFactory.getLogger(AutoPhrasingTokenFilterFactory.class);
 
     private final AutoPhrasingParameters autoPhrasingParameters;
-    private CharArraySet phraseSets;
+    // compiled once in inform(), every filter created by this factory shares it. It holds the
+    // current version of the dictionary, which is only replaced when reloading is enabled.
+    private PhraseDictionaryReloader phraseDictionary;
+    // shared by every filter created by this factory, so per core and field type
+    private final AutoPhrasingMetrics metrics = new AutoPhrasingMetrics();
+    // shared by every filter created by this factory, null when outputCacheSize is not set
+    private final PhraseOutputCache outputCache;
 
     public AutoPhrasingTokenFilterFactory(Map<String, String> initArgs) {
         super(initArgs);
 
         SolrParams params = SolrParams.toSolrParams(new NamedList(initArgs));
         autoPhrasingParameters = new AutoPhrasingParameters(params);
+        outputCache = autoPhrasingParameters.getOutputCacheSize() > 0 && !autoPhrasingParameters.getStreaming()
+                ? new PhraseOutputCache(autoPhrasingParameters.getOutputCacheSize(), PhraseOutputCache.DEFAULT_MAX_TOKENS)
+                : null;
     }
 
     @Override
-    public void inform(ResourceLoader loader) throws IOException {
+    public void inform(final ResourceLoader loader) throws IOException {
+        if (autoPhrasingParameters.getCompiledPhrases() != null) {
+            phraseDictionary = new PhraseDictionaryReloader(compiledPhrases(loader));
+            phraseDictionary.watch(autoPhrasingParameters.getReloadInterval() * 1000L);
+            return;
+        }
+        phraseDictionary = new PhraseDictionaryReloader(new PhraseDictionaryReloader.Source() {
+            @Override
+            public long stamp() throws IOException {
+                return phraseFilesStamp(loader);
+            }
+
+            @Override
+            public long fingerprint() throws IOException {
+                return phraseFilesChecksum(loader);
+            }
+
+            @Override
+            public PhraseDictionary compile() throws IOException {
+                return countHits(compileDictionary(loader));
+            }
+        });
+        phraseDictionary.watch(autoPhrasingParameters.getReloadInterval() * 1000L);
+    }
+
+    /**
+     * Reload the phrase files in the background, filters created or reset once it is done use the
+     * new phrases. Does not need reloadInterval to be set.
+     * 
+     * @return completes once the new phrases are in use
+     */
+    public Future<?> reloadPhrases() {
+        return phraseDictionary.reload();
+    }
+
+    /**
+     * @return the current version of the phrase dictionary
+     */
+    public PhraseDictionary getPhraseDictionary() {
+        return phraseDictionary.get();
+    }
+
+    /**
+     * @return what the filters created by this factory did
+     */
+    public AutoPhrasingMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the cache of the output of the filters, null if outputCacheSize is not set
+     */
+    public PhraseOutputCache getOutputCache() {
+        return outputCache;
+    }
+
+    /**
+     * @return the heap used by the current version of the phrase dictionary and by the output
+     *         cache. A reloaded dictionary replaces the previous version, which is then only kept
+     *         until the filters still matching it are reset.
+     */
+    @Override
+    public long ramBytesUsed() {
+        long bytes = 0;
+        if (phraseDictionary != null) {
+            bytes += phraseDictionary.get().ramBytesUsed();
+        }
+        if (outputCache != null) {
+            bytes += outputCache.ramBytesUsed();
+        }
+        return bytes;
+    }
+
+    @Override
+    public Collection<Accountable> getChildResources() {
+        List<Accountable> resources = new ArrayList<>();
+        if (phraseDictionary != null) {
+            PhraseDictionary dictionary = phraseDictionary.get();
+            resources.add(Accountables.namedAccountable("dictionary", dictionary.getChildResources(), dictionary.ramBytesUsed()));
+        }
+        if (outputCache != null) {
+            resources.add(Accountables.namedAccountable("output cache", outputCache.ramBytesUsed()));
+        }
+        return Collections.unmodifiableList(resources);
+    }
+
+    /**
+     * Register the metrics of the filters as ANALYSIS.autoPhrasing.&lt;scope&gt;.&lt;metric&gt;,
+     * replacing those of a previous factory with the same scope (the factory of the core before
+     * a reload). Analysis factories are not given the metric manager by Solr, this is called by
+     * AutoPhrasingMetricsComponent.
+     */
+    @Override
+    public void initializeMetrics(SolrMetricManager manager, String registry, String scope) {
+        MetricRegistry metricRegistry = manager.registry(registry);
+        Map<String, Metric> producedMetrics = new LinkedHashMap<>(metrics.getMetrics());
+        producedMetrics.put("ramBytesUsed", (Gauge<Long>) this::ramBytesUsed);
+        producedMetrics.put("dictionaryRamBytesUsed", (Gauge<Long>) () -> getPhraseDictionary().ramBytesUsed());
+        if (outputCache != null) {
+            producedMetrics.putAll(outputCache.getMetrics());
+        }
+        for (Map.Entry<String, Metric> metric : producedMetrics.entrySet()) {
+            String name = MetricRegistry.name("ANALYSIS", "autoPhrasing", scope, metric.getKey());
+            metricRegistry.remove(name);
+            metricRegistry.register(name, metric.getValue());
+        }
+    }
+
+    /**
+     * The dictionary written by PhraseDictionaryCompiler to the compiledPhrases file, which is
+     * opened rather than compiled. A relative path is resolved against the conf directory, which
+     * is only possible on standalone Solr.
+     */
+    private PhraseDictionaryReloader.Source compiledPhrases(ResourceLoader loader) {
+        final Path compiledFile = configFile(loader, autoPhrasingParameters.getCompiledPhrases());
+        return new PhraseDictionaryReloader.Source() {
+            @Override
+            public long stamp() throws IOException {
+                return Files.getLastModifiedTime(compiledFile).toMillis() * 31 + Files.size(compiledFile);
+            }
+
+            @Override
+            public PhraseDictionary compile() throws IOException {
+                FSTPhraseDictionary dictionary = FSTPhraseDictionary.open(compiledFile);
+                LOG.info("Opened {} compiled phrases from {} using {} bytes of heap",
+                        dictionary.size(), compiledFile, dictionary.ramBytesUsed());
+                return countHits(dictionary);
+            }
+        };
+    }
+
+    private PhraseDictionary countHits(PhraseDictionary dictionary) {
+        if (autoPhrasingParameters.getCountPhraseHits()) {
+            dictionary.enableHitCounts();
+        }
+        return dictionary;
+    }
+
+    /**
+     * @return the file of a resource, a relative path being resolved against the conf directory
+     *         of a SolrResourceLoader
+     */
+    private static Path configFile(ResourceLoader loader, String resource) {
+        Path file = Paths.get(resource);
+        if (!file.isAbsolute() && loader instanceof SolrResourceLoader) {
+            file = Paths.get(((SolrResourceLoader) loader).getConfigDir()).resolve(file);
+        }
+        return file;
+    }
+
+    /**
+     * @return a stamp of the phrase files read from their metadata, their size and last modified
+     *         time or their version in ZooKeeper. The checksum of their content when a file has
+     *         no metadata the loader exposes, 0 if there are none.
+     */
+    private long phraseFilesStamp(ResourceLoader loader) throws IOException {
         String phraseSetFiles = autoPhrasingParameters.getPhraseSetFiles();
+        if (phraseSetFiles == null) {
+            return 0;
+        }
+        long stamp = 1;
+        for (String file : splitFileNames(phraseSetFiles)) {
+            long fileStamp = resourceStamp(loader, file.trim());
+            if (fileStamp < 0) {
+                return phraseFilesChecksum(loader);
+            }
+            stamp = 31 * stamp + fileStamp;
+        }
+        return stamp;
+    }
+
+    /**
+     * @return a stamp of the resource read from its metadata, -1 if the loader exposes none
+     */
+    private static long resourceStamp(ResourceLoader loader, String resource) throws IOException {
+        if (loader instanceof ZkSolrResourceLoader) {
+            ZkSolrResourceLoader zkLoader = (ZkSolrResourceLoader) loader;
+            String path = zkLoader.getConfigSetZkPath() + "/" + resource;
+            try {
+                Stat stat = zkLoader.getZkController().getZkClient().exists(path, null, true);
+                // the id of the transaction that last modified the node
+                return stat == null ? -1 : stat.getMzxid();
+            } catch (KeeperException e) {
+                throw new IOException("Could not read the stat of " + path, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading the stat of " + path, e);
+            }
+        }
+        Path file = configFile(loader, resource);
+        if (!Files.isRegularFile(file)) {
+            return -1;
+        }
+        return Files.getLastModifiedTime(file).toMillis() * 31 + Files.size(file);
+    }
+
+    /**
+     * @return a checksum of the content of the phrase files, 0 if there are none
+     */
+    private long phraseFilesChecksum(ResourceLoader loader) throws IOException {
+        List<String> phraseSetFiles = autoPhrasingParameters.getIndividualPhraseSetFiles();
+        if (phraseSetFiles.isEmpty()) {
+            return 0;
+        }
+        CRC32 checksum = new CRC32();
+        byte[] buffer = new byte[8192];
+        for (String file : phraseSetFiles) {
+            try (InputStream stream = loader.openResource(file.trim())) {
+                for (int read = stream.read(buffer); read >= 0; read = stream.read(buffer)) {
+                    checksum.update(buffer, 0, read);
+                }
+            }
+        }
+        return checksum.getValue();
+    }
+
+    private PhraseDictionary compileDictionary(ResourceLoader loader) throws IOException {
         boolean ignoreCase = autoPhrasingParameters.getIgnoreCase();
+        Character replaceWhitespaceWith = autoPhrasingParameters.getReplaceWhitespaceWith();
+
+        CharArraySet phraseSets = loadPhraseFiles(loader, autoPhrasingParameters.getIndividualPhraseSetFiles(), ignoreCase);
+
+        // the phrase set is only needed to compile the dictionary, it is not kept. The dictionary
+        // folds case while matching, so no LowerCaseFilter is needed before this one.
+        int threads = autoPhrasingParameters.getCompileThreads();
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        try {
+            if (autoPhrasingParameters.getDictionaryType() == PhraseDictionary.Type.FST) {
+                FSTPhraseDictionary fstDictionary = new FSTPhraseDictionary(phraseSets, replaceWhitespaceWith, ignoreCase, pool);
+                LOG.info("Compiled {} phrases into an fst dictionary using {} bytes of heap",
+                        fstDictionary.size(), fstDictionary.ramBytesUsed());
+                return fstDictionary;
+            }
+            PhraseTrie trie = new PhraseTrie(phraseSets, replaceWhitespaceWith, ignoreCase, pool);
+            LOG.info("Compiled {} phrases into a trie dictionary", trie.size());
+            return trie;
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Read the phrase files in parallel, one thread per file up to the number of processors, and
+     * merge their phrases. Files ending with .gz are decompressed as they are read. Like
+     * getWordSet, blank lines and lines starting with # are skipped.
+     * 
+     * @return the phrases of all files, null if there are no files
+     */
+    static CharArraySet loadPhraseFiles(final ResourceLoader loader, List<String> files, boolean ignoreCase) throws IOException {
+        if (files.isEmpty()) {
+            return null;
+        }
+
+        List<List<String>> phrases = new ArrayList<>(files.size());
+        if (files.size() == 1) {
+            phrases.add(loadPhraseFile(loader, files.get(0).trim()));
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(
+                    Math.min(files.size(), Runtime.getRuntime().availableProcessors()));
+            try {
+                List<Future<List<String>>> loads = new ArrayList<>(files.size());
+                for (final String file : files) {
+                    loads.add(executor.submit(() -> loadPhraseFile(loader, file.trim())));
+                }
+                for (Future<List<String>> load : loads) {
+                    phrases.add(load.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading phrase files", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Could not load phrase files", e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        int count = 0;
+        for (List<String> filePhrases : phrases) {
+            count += filePhrases.size();
+        }
+        CharArraySet phraseSets = new CharArraySet(count, ignoreCase);
+        for (List<String> filePhrases : phrases) {
+            phraseSets.addAll(filePhrases);
+        }
+        return phraseSets;
+    }
 
-        if (phraseSetFiles != null)
-            phraseSets = getWordSet(loader, phraseSetFiles, ignoreCase);
+    private static List<String> loadPhraseFile(ResourceLoader loader, String file) throws IOException {
+        long start = System.nanoTime();
+        try (InputStream raw = loader.openResource(file);
+             InputStream stream = file.endsWith(".gz") ? new GZIPInputStream(raw) : raw) {
+            List<String> phrases = WordlistLoader.getLines(stream, StandardCharsets.UTF_8);
+            LOG.info("Loaded {} phrases from {} in {} ms", phrases.size(), file,
+                    (System.nanoTime() - start) / 1000000);
+            return phrases;
+        }
     }
 
     @Override
     public TokenStream create(TokenStream input) {
         Character replaceWhitespaceWith = autoPhrasingParameters.getReplaceWhitespaceWith();
 
-        AutoPhrasingTokenFilter autoPhraseFilter = new AutoPhrasingTokenFilter(input, phraseSets);
+        AutoPhrasingTokenFilter autoPhraseFilter = new AutoPhrasingTokenFilter(input, phraseDictionary);
         autoPhraseFilter.setReplaceWhitespaceWith(replaceWhitespaceWith);
+        autoPhraseFilter.setStreaming(autoPhrasingParameters.getStreaming());
+        autoPhraseFilter.setIncludeTokens(autoPhrasingParameters.getIncludeTokens());
+        autoPhraseFilter.setMetrics(metrics);
+        autoPhraseFilter.setOutputCache(outputCache);
         return autoPhraseFilter;
     }
 
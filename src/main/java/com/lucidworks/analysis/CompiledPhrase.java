@@ -0,0 +1,216 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 ben.demott.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.lucidworks.analysis;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A phrase compiled once, when the dictionary is loaded, so that matching and emitting it does
+ * not need to split, scan or rewrite the configured phrase text.
+ * 
+ * Holds the phrase terms, which of them are TOKEN? wildcards, the minimum number of tokens the
+ * phrase needs to match and the form the phrase is emitted with, the wildcards stripped. The
+ * surface form is the emitted form with the whitespace already replaced, so a filter using the
+ * same replacement character can copy it to the term attribute as is.
+ */
+public final class CompiledPhrase implements Accountable {
+    private static final char[] WILDCARD = AutoPhrasingTokenFilter.WILDCARD_TOKEN.toCharArray();
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(CompiledPhrase.class);
+
+    private final char[][] terms;
+    private final boolean[] wildcards;
+    private final int minTokens;
+    private final char[] output;
+    private final char[] surfaceForm;
+
+    /**
+     * @param terms the phrase terms, TOKEN? wildcards included
+     */
+    CompiledPhrase(List<char[]> terms) {
+        this(terms, ' ');
+    }
+
+    /**
+     * @param terms the phrase terms, TOKEN? wildcards included
+     * @param replaceWhitespaceWith the character replacing the spaces of the surface form, null
+     *                              to remove them
+     */
+    CompiledPhrase(List<char[]> terms, Character replaceWhitespaceWith) {
+        this.terms = terms.toArray(new char[terms.size()][]);
+        this.wildcards = new boolean[this.terms.length];
+
+        int literals = 0;
+        int outputLength = 0;
+        for (int i = 0; i < this.terms.length; i++) {
+            wildcards[i] = isWildcard(this.terms[i]);
+            if (!wildcards[i]) {
+                outputLength += (literals > 0 ? 1 : 0) + this.terms[i].length;
+                literals++;
+            }
+        }
+        this.minTokens = literals;
+
+        this.output = new char[outputLength];
+        int offset = 0;
+        for (int i = 0; i < this.terms.length; i++) {
+            if (wildcards[i]) {
+                continue;
+            }
+            if (offset > 0) {
+                output[offset++] = AutoPhrasingTokenFilter.PHRASE_SEPARATOR.charAt(0);
+            }
+            System.arraycopy(this.terms[i], 0, output, offset, this.terms[i].length);
+            offset += this.terms[i].length;
+        }
+
+        this.surfaceForm = replaceWhitespaceWith != null && replaceWhitespaceWith == ' '
+                ? output
+                : CharArrayUtil.replaceWhitespace(output, replaceWhitespaceWith);
+    }
+
+    /**
+     * Compile a phrase as configured: terms separated by whitespace, repeated whitespace ignored.
+     * 
+     * @return the compiled phrase, or null if the phrase has no terms
+     */
+    public static CompiledPhrase compile(char[] phrase) {
+        return compile(phrase, ' ');
+    }
+
+    /**
+     * Compile a phrase as configured, precomputing its surface form with replaceWhitespaceWith.
+     * 
+     * @return the compiled phrase, or null if the phrase has no terms
+     */
+    public static CompiledPhrase compile(char[] phrase, Character replaceWhitespaceWith) {
+        List<char[]> terms = splitTerms(phrase);
+        return terms.isEmpty() ? null : new CompiledPhrase(terms, replaceWhitespaceWith);
+    }
+
+    /**
+     * Split a phrase into its terms, ignoring repeated whitespace.
+     */
+    static List<char[]> splitTerms(char[] phrase) {
+        List<char[]> terms = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= phrase.length; i++) {
+            if (i == phrase.length || CharArrayUtil.isSpaceChar(phrase[i])) {
+                if (i > start) {
+                    char[] term = new char[i - start];
+                    System.arraycopy(phrase, start, term, 0, i - start);
+                    terms.add(term);
+                }
+                start = i + 1;
+            }
+        }
+        return terms;
+    }
+
+    static boolean isWildcard(char[] term) {
+        if (term.length != WILDCARD.length) {
+            return false;
+        }
+        for (int i = 0; i < term.length; i++) {
+            if (Character.toUpperCase(term[i]) != WILDCARD[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of terms, which is also the most tokens the phrase can span
+     */
+    public int length() {
+        return terms.length;
+    }
+
+    public char[] getTerm(int index) {
+        return terms[index];
+    }
+
+    /**
+     * @return true if the term at index is a TOKEN? wildcard
+     */
+    public boolean isWildcard(int index) {
+        return wildcards[index];
+    }
+
+    /**
+     * @return the fewest tokens the phrase can match, all wildcards being skipped
+     */
+    public int getMinTokens() {
+        return minTokens;
+    }
+
+    /**
+     * @return the phrase as it is emitted: its literal terms separated by a single space
+     */
+    public char[] getOutput() {
+        return output;
+    }
+
+    /**
+     * @return the phrase as it is emitted, with the whitespace replaced by the character the
+     *         dictionary was compiled with
+     */
+    public char[] getSurfaceForm() {
+        return surfaceForm;
+    }
+
+    /**
+     * @return the heap used by the phrase, its terms included
+     */
+    @Override
+    public long ramBytesUsed() {
+        long bytes = BASE_RAM_BYTES_USED + RamUsageEstimator.shallowSizeOf(terms) + RamUsageEstimator.sizeOf(wildcards)
+                + RamUsageEstimator.sizeOf(output);
+        for (char[] term : terms) {
+            bytes += RamUsageEstimator.sizeOf(term);
+        }
+        if (surfaceForm != output) {
+            bytes += RamUsageEstimator.sizeOf(surfaceForm);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the phrase terms separated by a single space, wildcards included
+     */
+    @Override
+    public String toString() {
+        StringBuilder phrase = new StringBuilder();
+        for (char[] term : terms) {
+            if (phrase.length() > 0) {
+                phrase.append(AutoPhrasingTokenFilter.PHRASE_SEPARATOR);
+            }
+            phrase.append(term);
+        }
+        return phrase.toString();
+    }
+}
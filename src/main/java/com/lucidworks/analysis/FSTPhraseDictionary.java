@@ -0,0 +1,788 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 ben.demott.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.lucidworks.analysis;
+
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Accountables;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.IntsRefFSTEnum;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * A phrase dictionary stored in a Lucene {@link FST}, for very large phrase sets.
+ * 
+ * Phrases are encoded as their characters with a single separator label between terms, the
+ * TOKEN? wildcard being a single reserved label. The FST shares both prefixes and suffixes
+ * between phrases, so it needs a fraction of the heap of a {@link PhraseTrie} or a
+ * CharArraySet. The output of each phrase is its ordinal, the phrase itself is only rebuilt
+ * and compiled from the FST when it matched, and kept by the matcher for the next time.
+ * 
+ * Matching walks the FST one term (one token) at a time from the start token. There is no
+ * Aho-Corasick automaton, every start token is matched on its own, so this is slower than the
+ * trie: use it when heap matters more than analysis speed.
+ * 
+ * A compiled dictionary can be saved to a versioned binary file, see {@link #save(Path)}, and
+ * opened again without compiling anything, see {@link #open(Path)} and PhraseDictionaryCompiler.
+ */
+public final class FSTPhraseDictionary extends PhraseDictionary {
+
+    // label replacing a whole TOKEN? term, and label between two terms of a phrase
+    static final int WILDCARD_LABEL = 0;
+    static final int SEPARATOR_LABEL = ' ';
+
+    // the binary format written by save(Path)
+    static final String CODEC_NAME = "AutoPhrasingFST";
+    static final int VERSION_START = 0;
+    static final int VERSION_VOCABULARY_FILTER = 1;
+    static final int VERSION_CURRENT = VERSION_VOCABULARY_FILTER;
+    private static final int FLAG_IGNORE_CASE = 1;
+    private static final int FLAG_REPLACE_WHITESPACE = 2;
+    private static final int FLAG_HAS_FST = 4;
+    private static final int FLAG_HAS_VOCABULARY_FILTER = 8;
+
+    // the number of rebuilt phrases each matcher keeps, a power of 2
+    private static final int PHRASE_CACHE_SIZE = 256;
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(FSTPhraseDictionary.class);
+
+    private final FST<Long> fst;
+    private final int size;
+    private final int maxPhraseLength;
+    // null when a phrase is only made of TOKEN? wildcards
+    private final VocabularyFilter vocabularyFilter;
+
+    /**
+     * Build an FST from a set of phrases, each phrase being terms separated by whitespace.
+     * 
+     * @param phraseSet 
+     */
+    public FSTPhraseDictionary(CharArraySet phraseSet) throws IOException {
+        this(phraseSet, ' ');
+    }
+
+    /**
+     * Build an FST from a set of phrases, each phrase being terms separated by whitespace.
+     * 
+     * @param phraseSet 
+     * @param replaceWhitespaceWith the character replacing whitespace in the emitted phrases
+     */
+    public FSTPhraseDictionary(CharArraySet phraseSet, Character replaceWhitespaceWith) throws IOException {
+        this(phraseSet, replaceWhitespaceWith, false);
+    }
+
+    /**
+     * Build an FST from a set of phrases, each phrase being terms separated by whitespace. When
+     * ignoring case the FST holds the terms lower cased, and so do the phrases it emits.
+     * 
+     * @param phraseSet 
+     * @param replaceWhitespaceWith the character replacing whitespace in the emitted phrases
+     * @param ignoreCase true to match terms regardless of their case
+     */
+    public FSTPhraseDictionary(CharArraySet phraseSet, Character replaceWhitespaceWith, boolean ignoreCase) throws IOException {
+        this(phraseSet, replaceWhitespaceWith, ignoreCase, null);
+    }
+
+    /**
+     * Build an FST from a set of phrases, each phrase being terms separated by whitespace, using
+     * the threads of a pool. Phrases are compiled into FST inputs and sorted in parallel, the
+     * FST itself can only be built serially from the sorted inputs. The FST is the same as the
+     * one built serially.
+     * 
+     * @param phraseSet 
+     * @param replaceWhitespaceWith the character replacing whitespace in the emitted phrases
+     * @param ignoreCase true to match terms regardless of their case
+     * @param pool the pool compiling and sorting the phrases, null to do it in the calling thread
+     */
+    public FSTPhraseDictionary(CharArraySet phraseSet, Character replaceWhitespaceWith, boolean ignoreCase, ForkJoinPool pool) throws IOException {
+        super(replaceWhitespaceWith, ignoreCase);
+        Object[] phrases = phraseSet == null ? new Object[0] : phraseSet.toArray();
+        CompiledPhrase[] compiled = run(pool, () -> stream(phrases, pool)
+                .map(phrase -> CompiledPhrase.compile((char[]) phrase))
+                .filter(Objects::nonNull)
+                .toArray(CompiledPhrase[]::new));
+        int maxLength = 0;
+        boolean literalFree = false;
+        // the distinct terms of the phrases, the filter is sized by their number
+        CharArraySet vocabulary = new CharArraySet(16, ignoreCase);
+        for (CompiledPhrase phrase : compiled) {
+            maxLength = Math.max(maxLength, phrase.length());
+            literalFree |= phrase.getMinTokens() == 0;
+            for (int i = 0; i < phrase.length(); i++) {
+                char[] term = phrase.getTerm(i);
+                if (!phrase.isWildcard(i) && !vocabulary.contains(term, 0, term.length)) {
+                    // a copy, the set folds the case of the arrays it is given in place
+                    vocabulary.add(term.clone());
+                }
+            }
+        }
+        this.vocabularyFilter = literalFree ? null : new VocabularyFilter(vocabulary.size(), ignoreCase);
+        if (vocabularyFilter != null) {
+            for (Object term : vocabulary) {
+                vocabularyFilter.add((char[]) term);
+            }
+        }
+        // the FST builder requires its inputs sorted, and the ordinal outputs rely on it
+        IntsRef[] inputs = run(pool, () -> stream(compiled, pool)
+                .map(this::toInput)
+                .sorted()
+                .toArray(IntsRef[]::new));
+
+        Builder<Long> builder = new Builder<>(FST.INPUT_TYPE.BYTE2, PositiveIntOutputs.getSingleton());
+        IntsRef previous = null;
+        long ordinal = 0;
+        for (IntsRef input : inputs) {
+            if (input.equals(previous)) {
+                continue;
+            }
+            builder.add(input, ordinal++);
+            previous = input;
+        }
+
+        this.fst = builder.finish();
+        this.size = (int) ordinal;
+        this.maxPhraseLength = maxLength;
+    }
+
+    /**
+     * @return the FST input of a phrase: the labels of its terms, separated by SEPARATOR_LABEL
+     */
+    private IntsRef toInput(CompiledPhrase phrase) {
+        IntsRefBuilder input = new IntsRefBuilder();
+        for (int i = 0; i < phrase.length(); i++) {
+            if (i > 0) {
+                input.append(SEPARATOR_LABEL);
+            }
+            if (phrase.isWildcard(i)) {
+                input.append(WILDCARD_LABEL);
+            } else {
+                char[] term = phrase.getTerm(i);
+                for (int j = 0; j < term.length; ) {
+                    int codePoint = Character.codePointAt(term, j);
+                    j += Character.charCount(codePoint);
+                    for (char label : Character.toChars(fold(codePoint))) {
+                        input.append(label);
+                    }
+                }
+            }
+        }
+        return input.get();
+    }
+
+    private static <T> Stream<T> stream(T[] array, ForkJoinPool pool) {
+        Stream<T> stream = Arrays.stream(array);
+        return pool == null ? stream : stream.parallel();
+    }
+
+    /**
+     * Run a task in the pool, so parallel streams use its threads rather than the common pool's.
+     */
+    private static <T> T run(ForkJoinPool pool, Supplier<T> task) {
+        if (pool == null) {
+            return task.get();
+        }
+        try {
+            return pool.submit(task::get).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building the phrase FST", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the code point, folded to lower case when ignoring case. Like CharArrayMap, terms
+     *         are folded code point by code point, a surrogate pair as the character it encodes.
+     */
+    int fold(int codePoint) {
+        return isIgnoreCase() ? Character.toLowerCase(codePoint) : codePoint;
+    }
+
+    private FSTPhraseDictionary(FST<Long> fst, int size, int maxPhraseLength, VocabularyFilter vocabularyFilter,
+                                Character replaceWhitespaceWith, boolean ignoreCase) {
+        super(replaceWhitespaceWith, ignoreCase);
+        this.fst = fst;
+        this.size = size;
+        this.maxPhraseLength = maxPhraseLength;
+        this.vocabularyFilter = vocabularyFilter;
+    }
+
+    /**
+     * Write the dictionary to file, in a format with a version header and a checksum footer. The
+     * file is written under a temporary name then renamed, so a dictionary being opened from the
+     * same file never sees it half written.
+     * 
+     * @param file 
+     */
+    public void save(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        try (Directory directory = FSDirectory.open(file.toAbsolutePath().getParent())) {
+            String tempName;
+            try (IndexOutput out = directory.createTempOutput(name, "tmp", IOContext.DEFAULT)) {
+                tempName = out.getName();
+                CodecUtil.writeHeader(out, CODEC_NAME, VERSION_CURRENT);
+                int flags = (isIgnoreCase() ? FLAG_IGNORE_CASE : 0)
+                        | (getReplaceWhitespaceWith() != null ? FLAG_REPLACE_WHITESPACE : 0)
+                        | (fst != null ? FLAG_HAS_FST : 0)
+                        | (vocabularyFilter != null ? FLAG_HAS_VOCABULARY_FILTER : 0);
+                out.writeByte((byte) flags);
+                if (getReplaceWhitespaceWith() != null) {
+                    out.writeVInt(getReplaceWhitespaceWith());
+                }
+                out.writeVInt(size);
+                out.writeVInt(maxPhraseLength);
+                if (fst != null) {
+                    fst.save(out);
+                }
+                if (vocabularyFilter != null) {
+                    vocabularyFilter.write(out);
+                }
+                CodecUtil.writeFooter(out);
+            }
+            directory.sync(Collections.singleton(tempName));
+            directory.rename(tempName, name);
+        }
+    }
+
+    /**
+     * Open a dictionary written by {@link #save(Path)}. The file is memory mapped and read
+     * sequentially into the FST, nothing is compiled, so this takes about as long as reading the
+     * file from the page cache. The checksum of the whole file is verified. Files written before
+     * the vocabulary filter was added are opened without one.
+     * 
+     * @param file 
+     * @throws org.apache.lucene.index.CorruptIndexException if the file is not a dictionary, was
+     *                                                       written by an unsupported version or
+     *                                                       is corrupted
+     */
+    public static FSTPhraseDictionary open(Path file) throws IOException {
+        try (Directory directory = new MMapDirectory(file.toAbsolutePath().getParent());
+             ChecksumIndexInput in = directory.openChecksumInput(file.getFileName().toString(), IOContext.READONCE)) {
+            CodecUtil.checkHeader(in, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+            int flags = in.readByte();
+            Character replaceWhitespaceWith = (flags & FLAG_REPLACE_WHITESPACE) != 0 ? (char) in.readVInt() : null;
+            int size = in.readVInt();
+            int maxPhraseLength = in.readVInt();
+            FST<Long> fst = (flags & FLAG_HAS_FST) != 0 ? new FST<>(in, PositiveIntOutputs.getSingleton()) : null;
+            boolean ignoreCase = (flags & FLAG_IGNORE_CASE) != 0;
+            VocabularyFilter vocabularyFilter = (flags & FLAG_HAS_VOCABULARY_FILTER) != 0
+                    ? VocabularyFilter.read(in, ignoreCase) : null;
+            CodecUtil.checkFooter(in);
+            return new FSTPhraseDictionary(fst, size, maxPhraseLength, vocabularyFilter, replaceWhitespaceWith, ignoreCase);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int getMaxPhraseLength() {
+        return maxPhraseLength;
+    }
+
+    @Override
+    public VocabularyFilter getVocabularyFilter() {
+        return vocabularyFilter;
+    }
+
+    /**
+     * @return the heap used by the dictionary in bytes, the FST of an opened compiled file is read
+     *         to the heap too
+     */
+    @Override
+    public long ramBytesUsed() {
+        long bytes = BASE_RAM_BYTES_USED;
+        if (fst != null) {
+            bytes += fst.ramBytesUsed();
+        }
+        if (vocabularyFilter != null) {
+            bytes += vocabularyFilter.ramBytesUsed();
+        }
+        PhraseHitCounts hitCounts = getHitCounts();
+        if (hitCounts != null) {
+            bytes += hitCounts.ramBytesUsed();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the heap used by the FST, the vocabulary filter and the hit counts, those the
+     *         dictionary has
+     */
+    @Override
+    public Collection<Accountable> getChildResources() {
+        List<Accountable> resources = new ArrayList<>();
+        if (fst != null) {
+            resources.add(Accountables.namedAccountable("fst", fst.getChildResources(), fst.ramBytesUsed()));
+        }
+        if (vocabularyFilter != null) {
+            resources.add(Accountables.namedAccountable("vocabulary filter", vocabularyFilter.ramBytesUsed()));
+        }
+        PhraseHitCounts hitCounts = getHitCounts();
+        if (hitCounts != null) {
+            resources.add(Accountables.namedAccountable("hit counts", hitCounts.ramBytesUsed()));
+        }
+        return Collections.unmodifiableList(resources);
+    }
+
+    /**
+     * Visits the phrases in the order of their ordinals, the order of the FST.
+     */
+    @Override
+    public void forEachPhrase(ObjIntConsumer<CompiledPhrase> visitor) throws IOException {
+        if (fst == null) {
+            return;
+        }
+        IntsRefFSTEnum<Long> phrases = new IntsRefFSTEnum<>(fst);
+        for (IntsRefFSTEnum.InputOutput<Long> phrase = phrases.next(); phrase != null; phrase = phrases.next()) {
+            visitor.accept(toPhrase(phrase.input), phrase.output.intValue());
+        }
+    }
+
+    /**
+     * Rebuild a phrase from the labels of its path in the FST.
+     */
+    private CompiledPhrase toPhrase(IntsRef labels) {
+        List<char[]> terms = new ArrayList<>();
+        int termStart = labels.offset;
+        int end = labels.offset + labels.length;
+        for (int i = labels.offset; i <= end; i++) {
+            if (i < end && labels.ints[i] != SEPARATOR_LABEL) {
+                continue;
+            }
+            if (i - termStart == 1 && labels.ints[termStart] == WILDCARD_LABEL) {
+                terms.add(AutoPhrasingTokenFilter.WILDCARD_TOKEN.toCharArray());
+            } else {
+                char[] term = new char[i - termStart];
+                for (int j = 0; j < term.length; j++) {
+                    term[j] = (char) labels.ints[termStart + j];
+                }
+                terms.add(term);
+            }
+            termStart = i + 1;
+        }
+        return new CompiledPhrase(terms, getReplaceWhitespaceWith());
+    }
+
+    @Override
+    public PhraseMatcher newMatcher() {
+        return new Matcher(this);
+    }
+
+    /**
+     * Simulates the FST as an NFA from each start token, one phrase term per token.
+     */
+    private static final class Matcher extends PhraseMatcher {
+        private final FSTPhraseDictionary dictionary;
+        private final FST<Long> fst;
+        private final FST.BytesReader reader;
+
+        // the arcs reached by walking the token graph, for every number of consumed tokens
+        private final ArcSet walk = new ArcSet();
+
+        private final FST.Arc<Long> scratchArc = new FST.Arc<>();
+        private final FST.Arc<Long> scratchFirstArc = new FST.Arc<>();
+        private final IntsRefBuilder scratchInts = new IntsRefBuilder();
+
+        // true if a phrase starts with TOKEN?, any token can then start one
+        private final boolean wildcardStartsPhrase;
+        // for each buffered token, whether it may be the term of a phrase, and how many may be
+        private boolean[] inVocabulary = new boolean[32];
+        private int tokenCount;
+        private int vocabularyTokens;
+
+        // the longest phrase found by the current match attempt, and the number of tokens it spans
+        private long phraseOrdinal;
+        private int phraseWordsUsed;
+
+        // the phrases rebuilt last, by the low bits of their ordinal, so a phrase seen again by
+        // this matcher is not rebuilt
+        private final CompiledPhrase[] phraseCache = new CompiledPhrase[PHRASE_CACHE_SIZE];
+        private final long[] phraseCacheOrdinals = new long[PHRASE_CACHE_SIZE];
+
+        private Matcher(FSTPhraseDictionary dictionary) {
+            this.dictionary = dictionary;
+            this.fst = dictionary.fst;
+            this.reader = fst == null ? null : fst.getBytesReader();
+            Arrays.fill(phraseCacheOrdinals, -1);
+            boolean wildcardStartsPhrase = false;
+            if (fst != null) {
+                try {
+                    fst.getFirstArc(scratchFirstArc);
+                    wildcardStartsPhrase = fst.findTargetArc(WILDCARD_LABEL, scratchFirstArc, scratchArc, reader) != null;
+                } catch (IOException e) {
+                    // the FST is on heap, reading it does not fail
+                    throw new IllegalStateException(e);
+                }
+            }
+            this.wildcardStartsPhrase = wildcardStartsPhrase;
+        }
+
+        @Override
+        public void reset() {
+            walk.clear();
+            tokenCount = 0;
+            vocabularyTokens = 0;
+        }
+
+        /**
+         * Check the new token against the vocabulary filter, the only time its term is hashed.
+         */
+        @Override
+        public void tokenAdded(TokenBuffer tokens) {
+            int index = tokens.size() - 1;
+            boolean known = dictionary.mightContainTerm(tokens.getTermBuffer(), tokens.getTermOffset(index),
+                    tokens.getTermLength(index));
+            if (tokenCount == inVocabulary.length) {
+                inVocabulary = Arrays.copyOf(inVocabulary, ArrayUtil.oversize(tokenCount + 1, 1));
+            }
+            inVocabulary[tokenCount++] = known;
+            if (known) {
+                vocabularyTokens++;
+            }
+        }
+
+        @Override
+        public void tokensRemoved(int count) {
+            System.arraycopy(inVocabulary, count, inVocabulary, 0, tokenCount - count);
+            tokenCount -= count;
+        }
+
+        @Override
+        public boolean mayMatch() {
+            return dictionary.vocabularyFilter == null || vocabularyTokens > 0;
+        }
+
+        /**
+         * True if the term may be the term of a phrase, and the first term of a phrase is, or
+         * starts with, the term.
+         */
+        @Override
+        public boolean canStartPhrase(TokenBuffer tokens, int index) throws IOException {
+            if (fst == null) {
+                return false;
+            }
+            if (wildcardStartsPhrase) {
+                return true;
+            }
+            if (!inVocabulary[index]) {
+                return false;
+            }
+            return followTerm(scratchFirstArc, scratchArc,
+                    tokens.getTermBuffer(), tokens.getTermOffset(index), tokens.getTermLength(index)) >= 0;
+        }
+
+        /**
+         * Find the phrase consuming the most tokens along a path of the token graph from start.
+         * After each token the set of (arc, next group) pairs reached by every path and every way
+         * of skipping or consuming the TOKEN? wildcards seen so far is kept, each FST node and
+         * group at most once, so an attempt costs O(phraseLength x window) even for phrases with
+         * many wildcards. The window is the longest phrase, and the attempt ends as soon as the
+         * set is empty.
+         */
+        @Override
+        public int longestMatch(TokenBuffer tokens, int start) throws IOException {
+            phraseWordsUsed = 0;
+            if (fst == null || (!wildcardStartsPhrase && !inVocabulary[start])) {
+                return 0;
+            }
+
+            walk.clear();
+            fst.getFirstArc(walk.slot());
+            walk.commit(0, start, -1, -1, 0);
+            addSkippedWildcards(0, true);
+            addWildcardExpansions(walk.size - 1);
+
+            int bestEntry = -1;
+            int levelStart = 0;
+            char[] termBuffer = tokens.getTermBuffer();
+            for (int consumed = 1; consumed <= dictionary.maxPhraseLength && levelStart < walk.size; consumed++) {
+                int levelEnd = walk.size;
+                for (int e = levelStart; e < levelEnd; e++) {
+                    int next = walk.next[e];
+                    if (next < 0) {
+                        continue;
+                    }
+                    boolean fromRoot = consumed == 1 && e == 0;
+                    // the first token must be the start token, not the tokens stacked with it
+                    int nextEnd = consumed == 1 ? start + 1 : tokens.getGroupEnd(next);
+                    for (int tokenIdx = next; tokenIdx < nextEnd; tokenIdx++) {
+                        if (tokens.isConsumed(tokenIdx)) {
+                            continue;
+                        }
+                        int after = tokens.getNextGroupStart(tokenIdx);
+                        long output = follow(walk.arcs[e], fromRoot, walk.outputs[e], termBuffer,
+                                tokens.getTermOffset(tokenIdx), tokens.getTermLength(tokenIdx));
+                        if (output >= 0) {
+                            walk.commit(output, after, tokenIdx, e, levelEnd);
+                        }
+                        // the TOKEN? consumes this token
+                        output = follow(walk.arcs[e], fromRoot, walk.outputs[e], null, 0, 0);
+                        if (output >= 0) {
+                            int before = walk.size;
+                            walk.commit(output, after, tokenIdx, e, levelEnd);
+                            addWildcardExpansions(walk.size - before);
+                        }
+                    }
+                }
+                // or the TOKEN? is skipped
+                int before = walk.size;
+                addSkippedWildcards(levelEnd, false);
+                addWildcardExpansions(walk.size - before);
+
+                for (int e = levelEnd; e < walk.size; e++) {
+                    FST.Arc<Long> arc = walk.arcs[e];
+                    if (arc.isFinal()) {
+                        phraseOrdinal = walk.outputs[e] + arc.nextFinalOutput;
+                        phraseWordsUsed = consumed;
+                        bestEntry = e;
+                        break;
+                    }
+                }
+                levelStart = levelEnd;
+            }
+            addCandidates(walk.size - 1);
+
+            for (int e = bestEntry, k = phraseWordsUsed - 1; k >= 0; e = walk.parents[e], k--) {
+                setMatchedToken(k, walk.tokens[e]);
+            }
+            return phraseWordsUsed;
+        }
+
+        /**
+         * Rebuilds the matched phrase from the FST unless it is cached, this is the only place the
+         * FST dictionary allocates while matching.
+         */
+        @Override
+        public CompiledPhrase getPhrase() throws IOException {
+            if (phraseWordsUsed == 0) {
+                return null;
+            }
+            int slot = (int) phraseOrdinal & (PHRASE_CACHE_SIZE - 1);
+            if (phraseCacheOrdinals[slot] != phraseOrdinal) {
+                phraseCache[slot] = buildPhrase();
+                phraseCacheOrdinals[slot] = phraseOrdinal;
+            }
+            return phraseCache[slot];
+        }
+
+        private CompiledPhrase buildPhrase() throws IOException {
+            fst.getFirstArc(scratchFirstArc);
+            IntsRef labels = Util.getByOutput(fst, phraseOrdinal, reader, scratchFirstArc, scratchArc, scratchInts);
+            return dictionary.toPhrase(labels);
+        }
+
+        @Override
+        public int getPhraseOrdinal() {
+            return (int) phraseOrdinal;
+        }
+
+        /**
+         * Close the pairs added since levelStart over TOKEN? wildcards not consuming any token,
+         * including chains of them. The pair reached stands for the same consumed token as the
+         * pair it was skipped from.
+         * 
+         * @param startsAtRoot true if the first arc of the level is the FST root
+         */
+        private void addSkippedWildcards(int levelStart, boolean startsAtRoot) throws IOException {
+            for (int i = levelStart; i < walk.size; i++) {
+                long output = follow(walk.arcs[i], startsAtRoot && i == levelStart, walk.outputs[i], null, 0, 0);
+                if (output >= 0) {
+                    walk.commit(output, walk.next[i], walk.tokens[i], walk.parents[i], levelStart);
+                }
+            }
+        }
+
+        /**
+         * Follow one phrase term from an arc, into the free slot of the walk.
+         * 
+         * @param fromRoot true if arc is the FST root, no term separator precedes the first term
+         * @param output the output accumulated up to arc
+         * @param buffer holds the term to follow in buffer[offset, offset + length), null for the
+         *               TOKEN? wildcard
+         * @return the output accumulated up to the arc reached, or -1 if the term cannot be followed
+         */
+        private long follow(FST.Arc<Long> arc, boolean fromRoot, long output, char[] buffer, int offset, int length) throws IOException {
+            if (buffer != null && length == 0) {
+                return -1;
+            }
+
+            FST.Arc<Long> next = walk.slot();
+            if (!fromRoot) {
+                if (fst.findTargetArc(SEPARATOR_LABEL, arc, next, reader) == null) {
+                    return -1;
+                }
+                output += next.output;
+                arc = next;
+            }
+
+            if (buffer == null) {
+                if (fst.findTargetArc(WILDCARD_LABEL, arc, next, reader) == null) {
+                    return -1;
+                }
+                output += next.output;
+            } else {
+                long termOutput = followTerm(arc, next, buffer, offset, length);
+                if (termOutput < 0) {
+                    return -1;
+                }
+                output += termOutput;
+            }
+            return output;
+        }
+
+        /**
+         * Follow the labels of the term in buffer[offset, offset + length) from arc, leaving the
+         * last arc reached in next. When ignoring case the term is folded code point by code
+         * point as it is followed, it is not copied.
+         *
+         * @return the output accumulated along the term, or -1 if the term cannot be followed
+         */
+        private long followTerm(FST.Arc<Long> arc, FST.Arc<Long> next, char[] buffer, int offset, int length) throws IOException {
+            long output = 0;
+            int end = offset + length;
+            for (int i = offset; i < end; ) {
+                int codePoint = Character.codePointAt(buffer, i, end);
+                i += Character.charCount(codePoint);
+                codePoint = dictionary.fold(codePoint);
+                if (Character.isBmpCodePoint(codePoint)) {
+                    if (fst.findTargetArc(codePoint, arc, next, reader) == null) {
+                        return -1;
+                    }
+                    output += next.output;
+                } else {
+                    if (fst.findTargetArc(Character.highSurrogate(codePoint), arc, next, reader) == null) {
+                        return -1;
+                    }
+                    output += next.output;
+                    if (fst.findTargetArc(Character.lowSurrogate(codePoint), next, next, reader) == null) {
+                        return -1;
+                    }
+                    output += next.output;
+                }
+                arc = next;
+            }
+            return output;
+        }
+    }
+
+    /**
+     * The FST arcs reached while walking the token graph, with their accumulated outputs, for
+     * every number of consumed tokens one after the other, reused between match attempts. Each
+     * arc remembers the group the next token is taken from (-1 past the buffered tokens), the
+     * token it consumed last and the arc it came from, so the path of a match can be rebuilt.
+     * Arcs leading to the same FST node and group have the same future, only the first one is
+     * kept.
+     */
+    private static final class ArcSet {
+        private FST.Arc<Long>[] arcs = newArcs(8, null);
+        private long[] outputs = new long[8];
+        private int[] next = new int[8];
+        private int[] tokens = new int[8];
+        private int[] parents = new int[8];
+        private int size;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static FST.Arc<Long>[] newArcs(int size, FST.Arc<Long>[] previous) {
+            FST.Arc<Long>[] arcs = new FST.Arc[size];
+            int copied = previous == null ? 0 : previous.length;
+            if (previous != null) {
+                System.arraycopy(previous, 0, arcs, 0, copied);
+            }
+            for (int i = copied; i < size; i++) {
+                arcs[i] = new FST.Arc<>();
+            }
+            return arcs;
+        }
+
+        private void clear() {
+            size = 0;
+        }
+
+        /**
+         * @return the arc to fill in before calling {@link #commit(long, int, int, int, int)}
+         */
+        private FST.Arc<Long> slot() {
+            if (size == arcs.length) {
+                arcs = newArcs(ArrayUtil.oversize(size + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF), arcs);
+                outputs = ArrayUtil.grow(outputs, arcs.length);
+                next = ArrayUtil.grow(next, arcs.length);
+                tokens = ArrayUtil.grow(tokens, arcs.length);
+                parents = ArrayUtil.grow(parents, arcs.length);
+            }
+            return arcs[size];
+        }
+
+        /**
+         * Keep the arc filled in the slot, unless an arc to the same node and group was kept
+         * since levelStart.
+         */
+        private void commit(long output, int nextToken, int token, int parent, int levelStart) {
+            long target = arcs[size].target;
+            for (int i = levelStart; i < size; i++) {
+                if (arcs[i].target == target && next[i] == nextToken) {
+                    return;
+                }
+            }
+            outputs[size] = output;
+            next[size] = nextToken;
+            tokens[size] = token;
+            parents[size] = parent;
+            size++;
+        }
+    }
+}
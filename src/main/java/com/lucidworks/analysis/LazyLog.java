@@ -56,6 +56,12 @@ public class LazyLog {
         }
     }
 
+    public static void logDebug (String format, CharSequence arg0, int arg1, int arg2) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format(format, arg0.toString(), arg1, arg2));
+        }
+    }
+
     public static void logDebug (String format, StringBuffer arg) {
         if (LOG.isDebugEnabled()) {
             LOG.debug(String.format(format, arg));
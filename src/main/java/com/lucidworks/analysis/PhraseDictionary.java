@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 ben.demott.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.lucidworks.analysis;
+
+import org.apache.lucene.util.Accountable;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * A compiled set of auto phrases the AutoPhrasingTokenFilter matches token streams against.
+ * 
+ * Implementations trade heap for speed differently, see {@link PhraseTrie} and
+ * {@link FSTPhraseDictionary}. A dictionary is immutable once built, so a single instance can be
+ * shared by any number of filters on any number of threads. All per stream state lives in the
+ * {@link PhraseMatcher} returned by {@link #newMatcher()}. The only mutable state are the
+ * optional {@link PhraseHitCounts}, which are thread safe.
+ * 
+ * A dictionary accounts for the heap it uses, its hit counts included, and breaks it down by
+ * structure in {@link #getChildResources()}.
+ */
+public abstract class PhraseDictionary implements Accountable {
+
+    // numbers the dictionaries in the order they are created
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private final long version = VERSIONS.incrementAndGet();
+
+    // the character the surface forms of the phrases were compiled with
+    private final Character replaceWhitespaceWith;
+    // true if terms are matched regardless of their case
+    private final boolean ignoreCase;
+    // how often each phrase was emitted, null unless counting was enabled
+    private volatile PhraseHitCounts hitCounts;
+
+    /**
+     * @param replaceWhitespaceWith the character replacing whitespace in the surface forms of the
+     *                              phrases, null to remove it
+     */
+    protected PhraseDictionary(Character replaceWhitespaceWith) {
+        this(replaceWhitespaceWith, false);
+    }
+
+    /**
+     * @param replaceWhitespaceWith the character replacing whitespace in the surface forms of the
+     *                              phrases, null to remove it
+     * @param ignoreCase            true to match the terms of the token stream case insensitively
+     */
+    protected PhraseDictionary(Character replaceWhitespaceWith, boolean ignoreCase) {
+        this.replaceWhitespaceWith = replaceWhitespaceWith;
+        this.ignoreCase = ignoreCase;
+    }
+
+    /**
+     * @return a number greater than that of every dictionary created before this one
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Dictionary implementations that can be selected with the dictionaryType parameter.
+     */
+    public enum Type {
+        TRIE, FST;
+
+        public static Type fromString(String type) {
+            if (type == null || type.isEmpty()) {
+                return TRIE;
+            }
+            return valueOf(type.toUpperCase(java.util.Locale.ROOT));
+        }
+    }
+
+    /**
+     * @return the character whitespace is replaced with in {@link CompiledPhrase#getSurfaceForm()},
+     *         null if it is removed
+     */
+    public Character getReplaceWhitespaceWith() {
+        return replaceWhitespaceWith;
+    }
+
+    /**
+     * @return true if terms are matched regardless of their case. Matching folds the case of the
+     *         token terms as it reads them, the tokens emitted keep their own case.
+     */
+    public boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    /**
+     * @return the number of distinct phrases in the dictionary
+     */
+    public abstract int size();
+
+    /**
+     * @return the maximum number of tokens a single phrase can span, wildcards included
+     */
+    public abstract int getMaxPhraseLength();
+
+    /**
+     * @return the Bloom filter of the terms of the phrases, built with the dictionary, or null if
+     *         a phrase is only made of TOKEN? wildcards, any document may then contain a phrase
+     */
+    public abstract VocabularyFilter getVocabularyFilter();
+
+    /**
+     * @return false if no phrase has the term in buffer[offset, offset + length), true if one may
+     */
+    public boolean mightContainTerm(char[] buffer, int offset, int length) {
+        VocabularyFilter vocabularyFilter = getVocabularyFilter();
+        return vocabularyFilter == null || vocabularyFilter.mightContain(buffer, offset, length);
+    }
+
+    /**
+     * Create the matching state for a single token stream.
+     */
+    public abstract PhraseMatcher newMatcher();
+
+    /**
+     * Visit every phrase along with its ordinal, the number between 0 and size() that
+     * {@link PhraseMatcher#getPhraseOrdinal()} identifies it with.
+     */
+    public abstract void forEachPhrase(ObjIntConsumer<CompiledPhrase> visitor) throws IOException;
+
+    /**
+     * Start counting how often each phrase is emitted by the filters matching this dictionary,
+     * which costs 8 bytes of heap per phrase. Filters started before are not counted.
+     *
+     * @return the counts, the same ones if counting was already enabled
+     */
+    public synchronized PhraseHitCounts enableHitCounts() {
+        if (hitCounts == null) {
+            hitCounts = new PhraseHitCounts(this);
+        }
+        return hitCounts;
+    }
+
+    /**
+     * @return how often each phrase was emitted, null unless {@link #enableHitCounts()} was called
+     */
+    public PhraseHitCounts getHitCounts() {
+        return hitCounts;
+    }
+}
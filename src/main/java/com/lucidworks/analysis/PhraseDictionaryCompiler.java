@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 ben.demott.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.lucidworks.analysis;
+
+import org.apache.lucene.analysis.util.ClasspathResourceLoader;
+import org.apache.lucene.analysis.util.FilesystemResourceLoader;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line tool compiling phrase files into the binary dictionary format the
+ * compiledPhrases parameter of AutoPhrasingTokenFilterFactory opens.
+ *
+ * The phrase files are read by the factory itself, with the same parameters as in the schema, so
+ * the compiled dictionary matches exactly what the factory would have compiled at startup:
+ *
+ * <pre>
+ * java -cp ... com.lucidworks.analysis.PhraseDictionaryCompiler autophrases.fst phrases=autophrases.txt ignoreCase=true replaceWhitespaceWith=_
+ * </pre>
+ *
+ * Phrase files are resolved against the current directory.
+ */
+public final class PhraseDictionaryCompiler {
+
+    private PhraseDictionaryCompiler() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: PhraseDictionaryCompiler <output file> phrases=<files> [<parameter>=<value>...]");
+            System.exit(1);
+        }
+
+        Map<String, String> params = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            if (equals <= 0) {
+                System.err.println("Not a parameter=value pair: " + args[i]);
+                System.exit(1);
+            }
+            params.put(args[i].substring(0, equals), args[i].substring(equals + 1));
+        }
+
+        Path output = Paths.get(args[0]);
+        FSTPhraseDictionary dictionary = compile(params, Paths.get(""));
+        dictionary.save(output);
+        System.out.println("Compiled " + dictionary.size() + " phrases into " + output);
+    }
+
+    /**
+     * Compile the phrase files named by the factory parameters into an FST dictionary.
+     *
+     * @param params  the parameters of the factory, dictionaryType is always fst
+     * @param baseDir the directory phrase files are resolved against
+     */
+    static FSTPhraseDictionary compile(Map<String, String> params, Path baseDir) throws IOException {
+        Map<String, String> factoryParams = new HashMap<>(params);
+        factoryParams.put("dictionaryType", "fst");
+        factoryParams.remove("compiledPhrases");
+        AutoPhrasingTokenFilterFactory factory = new AutoPhrasingTokenFilterFactory(factoryParams);
+        factory.inform(new FilesystemResourceLoader(baseDir, new ClasspathResourceLoader(PhraseDictionaryCompiler.class)));
+        return (FSTPhraseDictionary) factory.getPhraseDictionary();
+    }
+}
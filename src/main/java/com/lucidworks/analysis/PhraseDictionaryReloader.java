@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 ben.demott.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.lucidworks.analysis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Holds the current version of a phrase dictionary, and replaces it when its phrases change
+ * without a core reload.
+ *
+ * A new version is compiled in the background, then swapped in with a single volatile write, so
+ * the analysis path never waits on a lock or on compilation. AutoPhrasingTokenFilter asks for the
+ * current version on each reset(): a token stream already running finishes on the version it
+ * started with, the next one uses the new version. If compiling fails the current version is kept.
+ *
+ * Reloads are triggered with {@link #reload()}, or by {@link #watch(long)} when the phrases change.
+ * A watch checks the stamp of the phrases, such as the size and last modified time of their files,
+ * and only reads their fingerprint, a checksum of their content, when the stamp changed. Nothing
+ * is checked while the phrases are not watched. All reloaders share a single daemon thread, so
+ * reloads never run concurrently. A watch only holds its reloader weakly and stops once the reloader (the factory
+ * owning it) is garbage collected, so cores that are reloaded do not leak watches.
+ */
+public final class PhraseDictionaryReloader implements Supplier<PhraseDictionary> {
+    private static final Logger LOG = LoggerFactory.getLogger(PhraseDictionaryReloader.class);
+
+    private static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "autophrasing-dictionary-reload");
+        thread.setDaemon(true);
+        return thread;
+    });
+    static {
+        EXECUTOR.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Where the phrases of a dictionary come from.
+     */
+    public interface Source {
+        /**
+         * @return a cheap stamp of the phrases, such as the size and last modified time of their
+         *         files, that changes when they do
+         */
+        long stamp() throws IOException;
+
+        /**
+         * @return a summary of the content of the phrases, only asked for when their stamp
+         *         changed, so phrases touched without being changed are not compiled again
+         */
+        default long fingerprint() throws IOException {
+            return stamp();
+        }
+
+        /**
+         * @return a new dictionary compiled from the current phrases
+         */
+        PhraseDictionary compile() throws IOException;
+    }
+
+    private final Source source;
+    private volatile PhraseDictionary dictionary;
+    // the stamp and fingerprint of the phrases of the current dictionary, only known once the
+    // phrases are watched and only used on the reload thread
+    private boolean watched;
+    private long stamp;
+    private long fingerprint;
+    private ScheduledFuture<?> watch;
+
+    /**
+     * Compile the first version of the dictionary in the calling thread.
+     */
+    public PhraseDictionaryReloader(Source source) throws IOException {
+        this.source = source;
+        this.dictionary = source.compile();
+    }
+
+    /**
+     * @return the current version of the dictionary
+     */
+    @Override
+    public PhraseDictionary get() {
+        return dictionary;
+    }
+
+    /**
+     * Compile the current phrases in the background and swap them in, whether they changed or not.
+     *
+     * @return completes once the new version is in use, or compiling failed
+     */
+    public Future<?> reload() {
+        return EXECUTOR.submit(this::compile);
+    }
+
+    /**
+     * Check the phrases every interval milliseconds, and reload them when they changed. The first
+     * check runs right away and only records the phrases of the current version. Replaces the
+     * previous watch, an interval of 0 or less just stops it.
+     */
+    public synchronized void watch(long intervalMillis) {
+        if (watch != null) {
+            watch.cancel(false);
+            watch = null;
+        }
+        if (intervalMillis <= 0) {
+            return;
+        }
+        WeakReference<PhraseDictionaryReloader> reloader = new WeakReference<>(this);
+        ScheduledFuture<?>[] self = new ScheduledFuture<?>[1];
+        self[0] = watch = EXECUTOR.scheduleWithFixedDelay(() -> {
+            PhraseDictionaryReloader current = reloader.get();
+            if (current == null) {
+                self[0].cancel(false);
+                return;
+            }
+            current.check();
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop watching the phrases.
+     */
+    public void close() {
+        watch(0);
+    }
+
+    /**
+     * Compile and swap in a new version if the phrases changed since the last check, on the reload
+     * thread only. The fingerprint is only read when the stamp changed.
+     */
+    private void check() {
+        try {
+            long latestStamp = source.stamp();
+            if (watched && latestStamp == stamp) {
+                return;
+            }
+            long latestFingerprint = source.fingerprint();
+            if (watched && latestFingerprint != fingerprint) {
+                swap(source.compile());
+            }
+            watched = true;
+            stamp = latestStamp;
+            fingerprint = latestFingerprint;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not reload the phrases, keeping the current ones", e);
+        }
+    }
+
+    /**
+     * Compile and swap in a new version, on the reload thread only.
+     */
+    private void compile() {
+        try {
+            long latestStamp = 0;
+            long latestFingerprint = 0;
+            if (watched) {
+                // the phrases compiled now are the ones the next checks compare to
+                latestStamp = source.stamp();
+                latestFingerprint = source.fingerprint();
+            }
+            swap(source.compile());
+            stamp = latestStamp;
+            fingerprint = latestFingerprint;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not reload the phrases, keeping the current ones", e);
+        }
+    }
+
+    private void swap(PhraseDictionary compiled) {
+        dictionary = compiled;
+        LOG.info("Reloaded {} phrases", compiled.size());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 ben.demott.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.lucidworks.analysis;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * How often each phrase of a dictionary was emitted, to find the phrases that never match.
+ *
+ * A filter does not touch the counts while it runs: it keeps the ordinals of the phrases it
+ * emitted in a small buffer of its own, and adds them here when the stream ends or the buffer is
+ * full. A phrase emitted several times in the buffer is added once, by a lock free atomic add of
+ * its number of hits. Threads then only meet on a count when they flush the same phrase at the
+ * same time.
+ *
+ * The counts belong to one version of the dictionary, a reloaded dictionary starts from 0.
+ */
+public final class PhraseHitCounts implements Accountable {
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(PhraseHitCounts.class)
+            + RamUsageEstimator.shallowSizeOfInstance(AtomicLongArray.class);
+
+    /**
+     * A phrase and its count.
+     */
+    public static final class Hit {
+        private final String phrase;
+        private final long count;
+
+        Hit(String phrase, long count) {
+            this.phrase = phrase;
+            this.count = count;
+        }
+
+        /**
+         * @return the phrase as configured, its terms separated by a single space
+         */
+        public String getPhrase() {
+            return phrase;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    private final PhraseDictionary dictionary;
+    private final AtomicLongArray counts;
+
+    PhraseHitCounts(PhraseDictionary dictionary) {
+        this.dictionary = dictionary;
+        this.counts = new AtomicLongArray(dictionary.size());
+    }
+
+    /**
+     * Count one hit of each of the first count ordinals, sorting them in place so that each
+     * distinct ordinal takes a single atomic add.
+     */
+    void add(int[] ordinals, int count) {
+        Arrays.sort(ordinals, 0, count);
+        for (int i = 0; i < count; ) {
+            int ordinal = ordinals[i];
+            int hits = 1;
+            for (i++; i < count && ordinals[i] == ordinal; i++) {
+                hits++;
+            }
+            counts.addAndGet(ordinal, hits);
+        }
+    }
+
+    /**
+     * @return the hits of the phrase with the ordinal
+     */
+    public long get(int ordinal) {
+        return counts.get(ordinal);
+    }
+
+    /**
+     * @return the heap used by the counts, 8 bytes per phrase
+     */
+    @Override
+    public long ramBytesUsed() {
+        return BASE_RAM_BYTES_USED + RamUsageEstimator.alignObjectSize(
+                RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) Long.BYTES * counts.length());
+    }
+
+    /**
+     * @return every phrase with its count, the least matched first, phrases with the same count
+     *         in alphabetical order
+     */
+    public List<Hit> getHits() throws IOException {
+        List<Hit> hits = new ArrayList<>(dictionary.size());
+        dictionary.forEachPhrase((phrase, ordinal) -> hits.add(new Hit(phrase.toString(), counts.get(ordinal))));
+        hits.sort(Comparator.comparingLong(Hit::getCount).thenComparing(Hit::getPhrase));
+        return hits;
+    }
+
+    /**
+     * Write every phrase with its count as sorted by {@link #getHits()}, one per line: the count,
+     * a tab and the phrase.
+     */
+    public void write(Writer writer) throws IOException {
+        for (Hit hit : getHits()) {
+            writer.write(Long.toString(hit.getCount()));
+            writer.write('\t');
+            writer.write(hit.getPhrase());
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 ben.demott.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.lucidworks.analysis;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+
+import java.util.List;
+
+/**
+ * Lists how often each phrase of a field type was emitted since the core started (or the phrases
+ * were last reloaded), the least matched first, so the phrase files can be pruned of phrases
+ * that never match. The filter needs countPhraseHits="true".
+ *
+ * <pre>
+ * &lt;requestHandler name="/admin/autophrasing/hits" class="com.lucidworks.analysis.PhraseHitsRequestHandler"/&gt;
+ * </pre>
+ *
+ * Parameters: fieldType, the scope of the filter as for its metrics (the name of the field type,
+ * followed by .index or .query when its index and query analyzers differ), maxCount to only list
+ * the phrases matched at most that many times (0 for the dead ones), and rows to list at most
+ * that many phrases.
+ */
+public class PhraseHitsRequestHandler extends RequestHandlerBase {
+
+    @Override
+    public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+        SolrParams params = req.getParams();
+        String fieldType = params.required().get("fieldType");
+        long maxCount = params.getLong("maxCount", Long.MAX_VALUE);
+        int rows = params.getInt("rows", Integer.MAX_VALUE);
+
+        AutoPhrasingTokenFilterFactory[] found = new AutoPhrasingTokenFilterFactory[1];
+        AutoPhrasingMetricsComponent.forEachFactory(req.getCore().getLatestSchema(), (scope, factory) -> {
+            if (scope.equals(fieldType)) {
+                found[0] = factory;
+            }
+        });
+        if (found[0] == null) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    "No auto phrasing filter on field type " + fieldType);
+        }
+        PhraseHitCounts counts = found[0].getPhraseDictionary().getHitCounts();
+        if (counts == null) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    "countPhraseHits is not enabled on field type " + fieldType);
+        }
+
+        List<PhraseHitCounts.Hit> hits = counts.getHits();
+        SimpleOrderedMap<Long> listed = new SimpleOrderedMap<>();
+        for (PhraseHitCounts.Hit hit : hits) {
+            if (hit.getCount() > maxCount || listed.size() == rows) {
+                break;
+            }
+            listed.add(hit.getPhrase(), hit.getCount());
+        }
+        rsp.add("phrases", hits.size());
+        rsp.add("hits", listed);
+    }
+
+    @Override
+    public String getDescription() {
+        return "Lists the hits of each auto phrase";
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 ben.demott.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.lucidworks.analysis;
+
+import org.apache.lucene.util.ArrayUtil;
+
+import java.io.IOException;
+
+/**
+ * Finds phrases of a {@link PhraseDictionary} in the tokens buffered by a single
+ * AutoPhrasingTokenFilter. Matchers hold per stream state and are not thread safe.
+ * 
+ * Phrases are matched along paths of the token graph, so a phrase can go through any of the
+ * tokens stacked on a position, see {@link TokenBuffer#getNextGroupStart(int)}. Tokens already
+ * consumed by a phrase are not part of any path.
+ */
+public abstract class PhraseMatcher {
+
+    // the buffered tokens the last match consumed, in order, the first being the start token
+    private int[] matchedTokens = new int[8];
+
+    // the work done matching since the statistics were last cleared, see AutoPhrasingMetrics
+    private long candidates;
+    private long wildcardExpansions;
+
+    /**
+     * Forget everything about the previous stream.
+     */
+    public abstract void reset();
+
+    /**
+     * Called each time a token is appended to the buffered tokens. Matchers that scan the
+     * stream incrementally override this, the default does nothing.
+     * 
+     * @param tokens all buffered tokens, the new one being the last
+     */
+    public void tokenAdded(TokenBuffer tokens) throws IOException {
+    }
+
+    /**
+     * Called when the first count buffered tokens were dropped, the token at index count becoming
+     * the token at index 0. The default does nothing.
+     */
+    public void tokensRemoved(int count) {
+    }
+
+    /**
+     * Cheap test of whether a phrase could start with the buffered token at index. It may answer
+     * true for terms no phrase actually starts with, but never false for a term one does.
+     */
+    public abstract boolean canStartPhrase(TokenBuffer tokens, int index) throws IOException;
+
+    /**
+     * @return false if no phrase can match the tokens buffered since the last reset, as none of
+     *         them is the term of a phrase. The default answers true.
+     */
+    public boolean mayMatch() {
+        return true;
+    }
+
+    /**
+     * Find the phrase spanning the most tokens along a path of the token graph starting at the
+     * token at index start. The tokens of the path are then given by {@link #getMatchedToken(int)}.
+     * 
+     * @return the number of tokens the phrase spans, or 0 if no phrase starts at start
+     */
+    public abstract int longestMatch(TokenBuffer tokens, int start) throws IOException;
+
+    /**
+     * @return the buffer index of the token at index k of the path the last successful
+     *         longestMatch consumed, k being smaller than the number of tokens it returned
+     */
+    public final int getMatchedToken(int k) {
+        return matchedTokens[k];
+    }
+
+    protected final void setMatchedToken(int k, int index) {
+        matchedTokens = ArrayUtil.grow(matchedTokens, k + 1);
+        matchedTokens[k] = index;
+    }
+
+    /**
+     * Record a match of the length tokens following each other in the buffer from start.
+     */
+    protected final void setLinearMatch(int start, int length) {
+        for (int k = 0; k < length; k++) {
+            setMatchedToken(k, start + k);
+        }
+    }
+
+    /**
+     * @return true if the count tokens from start (fewer at the end of the buffer) are a single
+     *         path of the token graph: none is stacked on another, consumed or longer than one
+     *         position, so they can be matched as a plain sequence of tokens
+     */
+    protected static boolean isLinear(TokenBuffer tokens, int start, int count) {
+        int end = Math.min(tokens.size(), start + count);
+        for (int i = start; i < end; i++) {
+            if (i > start && (tokens.isStacked(i) || tokens.isConsumed(i))) {
+                return false;
+            }
+            if (i < end - 1 && tokens.getPositionLength(i) != 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the phrase found by the last successful longestMatch
+     */
+    public abstract CompiledPhrase getPhrase() throws IOException;
+
+    /**
+     * @return the ordinal of the phrase found by the last successful longestMatch, see
+     *         {@link PhraseDictionary#forEachPhrase}
+     */
+    public abstract int getPhraseOrdinal();
+
+    /**
+     * @return the number of candidate phrases (partial phrases reached, or phrases ending on a
+     *         token) evaluated since the statistics were cleared
+     */
+    public final long getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * @return the number of times a TOKEN? wildcard consumed or skipped a token since the
+     *         statistics were cleared
+     */
+    public final long getWildcardExpansions() {
+        return wildcardExpansions;
+    }
+
+    public final void clearStatistics() {
+        candidates = 0;
+        wildcardExpansions = 0;
+    }
+
+    protected final void addCandidates(int count) {
+        candidates += count;
+    }
+
+    protected final void addWildcardExpansions(int count) {
+        wildcardExpansions += count;
+    }
+}
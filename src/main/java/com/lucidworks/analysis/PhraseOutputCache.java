@@ -0,0 +1,381 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 ben.demott.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.lucidworks.analysis;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What AutoPhrasingTokenFilter emitted for a sequence of input tokens, so a field value seen
+ * before (a product title, a category path, boilerplate) is replayed instead of matched again.
+ *
+ * Only short fields are cached: those of at most maxTokens tokens. An entry is found by a hash of
+ * the terms, position increments and position lengths of the input tokens and compared with them
+ * in full, so a collision never replays the wrong tokens. The emitted tokens refer to the input
+ * tokens they stand for, their offsets are taken from the input of the stream replaying them.
+ *
+ * The cache has a fixed number of slots, size rounded down to a power of two, and an entry
+ * evicts the one in its slot. Lookups take no lock and allocate nothing. Entries belong to one
+ * version of the phrase dictionary, the cache empties itself when a filter stores an entry of
+ * a newer version. Entries of an older version, from a stream still matching with a dictionary
+ * that was replaced, are dropped rather than emptying the cache again. It must only be shared by filters with the same settings, as those of one
+ * AutoPhrasingTokenFilterFactory.
+ *
+ * The heap it uses depends on the fields cached, it is summed over the entries when asked for.
+ */
+public final class PhraseOutputCache implements MetricSet, Accountable {
+
+    public static final int DEFAULT_MAX_TOKENS = 64;
+
+    // the ints stored per input token, and per output token
+    private static final int KEY_STRIDE = 3;
+    private static final int OUTPUT_STRIDE = 6;
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(PhraseOutputCache.class)
+            + RamUsageEstimator.shallowSizeOfInstance(Slots.class)
+            + RamUsageEstimator.shallowSizeOfInstance(AtomicReferenceArray.class)
+            + 3 * RamUsageEstimator.shallowSizeOfInstance(LongAdder.class);
+    private static final long ENTRY_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(Entry.class);
+
+    /**
+     * The input tokens of a field value, and the tokens the filter emitted for them.
+     */
+    static final class Entry {
+        private final int hash;
+        // the input tokens: their terms, and for each its term length, position increment and length
+        private final char[] keyTerms;
+        private final int[] keyTokens;
+        // the output tokens: their terms, and for each the end of its term, the first and last
+        // input token it stands for, its position increment and length, and its phrase ordinal
+        // (-1 when it is not a phrase)
+        private final char[] terms;
+        private final int[] tokens;
+        private final int[] phraseOrdinals;
+
+        private Entry(int hash, TokenBuffer input, char[] terms, int[] tokens, int[] phraseOrdinals) {
+            this.hash = hash;
+            int keyLength = 0;
+            for (int i = 0; i < input.size(); i++) {
+                keyLength += input.getTermLength(i);
+            }
+            this.keyTerms = new char[keyLength];
+            this.keyTokens = new int[input.size() * KEY_STRIDE];
+            int position = 0;
+            for (int i = 0; i < input.size(); i++) {
+                System.arraycopy(input.getTermBuffer(), input.getTermOffset(i), keyTerms, position, input.getTermLength(i));
+                position += input.getTermLength(i);
+                keyTokens[i * KEY_STRIDE] = input.getTermLength(i);
+                keyTokens[i * KEY_STRIDE + 1] = input.getPositionIncrement(i);
+                keyTokens[i * KEY_STRIDE + 2] = input.getPositionLength(i);
+            }
+            this.terms = terms;
+            this.tokens = tokens;
+            this.phraseOrdinals = phraseOrdinals;
+        }
+
+        /**
+         * @return true if the input tokens are those of this entry
+         */
+        boolean matches(int hash, TokenBuffer input) {
+            if (hash != this.hash || input.size() * KEY_STRIDE != keyTokens.length) {
+                return false;
+            }
+            char[] buffer = input.getTermBuffer();
+            int position = 0;
+            for (int i = 0; i < input.size(); i++) {
+                int length = input.getTermLength(i);
+                if (length != keyTokens[i * KEY_STRIDE]
+                        || input.getPositionIncrement(i) != keyTokens[i * KEY_STRIDE + 1]
+                        || input.getPositionLength(i) != keyTokens[i * KEY_STRIDE + 2]) {
+                    return false;
+                }
+                int offset = input.getTermOffset(i);
+                for (int c = 0; c < length; c++) {
+                    if (buffer[offset + c] != keyTerms[position + c]) {
+                        return false;
+                    }
+                }
+                position += length;
+            }
+            return true;
+        }
+
+        int size() {
+            return tokens.length / OUTPUT_STRIDE;
+        }
+
+        char[] getTerms() {
+            return terms;
+        }
+
+        int getTermOffset(int index) {
+            return index == 0 ? 0 : tokens[(index - 1) * OUTPUT_STRIDE];
+        }
+
+        int getTermLength(int index) {
+            return tokens[index * OUTPUT_STRIDE] - getTermOffset(index);
+        }
+
+        int getFirstToken(int index) {
+            return tokens[index * OUTPUT_STRIDE + 1];
+        }
+
+        int getLastToken(int index) {
+            return tokens[index * OUTPUT_STRIDE + 2];
+        }
+
+        int getPositionIncrement(int index) {
+            return tokens[index * OUTPUT_STRIDE + 3];
+        }
+
+        int getPositionLength(int index) {
+            return tokens[index * OUTPUT_STRIDE + 4];
+        }
+
+        int getPhraseOrdinal(int index) {
+            return tokens[index * OUTPUT_STRIDE + 5];
+        }
+
+        /**
+         * @return the ordinals of the phrases emitted, to count their hits on a replay
+         */
+        int[] getPhraseOrdinals() {
+            return phraseOrdinals;
+        }
+
+        long ramBytesUsed() {
+            return ENTRY_RAM_BYTES_USED + RamUsageEstimator.sizeOf(keyTerms) + RamUsageEstimator.sizeOf(keyTokens)
+                    + RamUsageEstimator.sizeOf(terms) + RamUsageEstimator.sizeOf(tokens)
+                    + RamUsageEstimator.sizeOf(phraseOrdinals);
+        }
+    }
+
+    /**
+     * Collects what a filter emits for one stream, reused by the filter from stream to stream.
+     */
+    static final class Recorder {
+        private char[] terms = new char[64];
+        private int termsLength;
+        private int[] tokens = new int[8 * OUTPUT_STRIDE];
+        private int count;
+        private int phrases;
+
+        void clear() {
+            termsLength = 0;
+            count = 0;
+            phrases = 0;
+        }
+
+        void add(char[] term, int length, int firstToken, int lastToken, int positionIncrement,
+                 int positionLength, int phraseOrdinal) {
+            if (termsLength + length > terms.length) {
+                terms = Arrays.copyOf(terms, Math.max(terms.length * 2, termsLength + length));
+            }
+            System.arraycopy(term, 0, terms, termsLength, length);
+            termsLength += length;
+            if ((count + 1) * OUTPUT_STRIDE > tokens.length) {
+                tokens = Arrays.copyOf(tokens, tokens.length * 2);
+            }
+            int i = count++ * OUTPUT_STRIDE;
+            tokens[i] = termsLength;
+            tokens[i + 1] = firstToken;
+            tokens[i + 2] = lastToken;
+            tokens[i + 3] = positionIncrement;
+            tokens[i + 4] = positionLength;
+            tokens[i + 5] = phraseOrdinal;
+            if (phraseOrdinal >= 0) {
+                phrases++;
+            }
+        }
+
+        /**
+         * @return an entry of the tokens recorded for the input tokens
+         */
+        Entry toEntry(int hash, TokenBuffer input) {
+            int[] phraseOrdinals = new int[phrases];
+            for (int i = 0, p = 0; i < count; i++) {
+                if (tokens[i * OUTPUT_STRIDE + 5] >= 0) {
+                    phraseOrdinals[p++] = tokens[i * OUTPUT_STRIDE + 5];
+                }
+            }
+            return new Entry(hash, input, Arrays.copyOf(terms, termsLength),
+                    Arrays.copyOf(tokens, count * OUTPUT_STRIDE), phraseOrdinals);
+        }
+    }
+
+    /**
+     * The entries of one version of the dictionary.
+     */
+    private static final class Slots {
+        final PhraseDictionary dictionary;
+        final AtomicReferenceArray<Entry> entries;
+
+        Slots(PhraseDictionary dictionary, int size) {
+            this.dictionary = dictionary;
+            this.entries = new AtomicReferenceArray<>(size);
+        }
+    }
+
+    private final int size;
+    private final int maxTokens;
+    private volatile Slots slots;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param size the number of entries, rounded down to a power of two
+     * @param maxTokens the most input tokens a cached field can have
+     */
+    public PhraseOutputCache(int size, int maxTokens) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        this.size = Integer.highestOneBit(size);
+        this.maxTokens = maxTokens;
+        this.slots = new Slots(null, this.size);
+    }
+
+    /**
+     * @return true if the input tokens are few enough to be cached
+     */
+    boolean accepts(TokenBuffer input) {
+        return !input.isEmpty() && input.size() <= maxTokens;
+    }
+
+    /**
+     * @return the hash of the terms, position increments and position lengths of the input tokens
+     */
+    static int hash(TokenBuffer input) {
+        char[] buffer = input.getTermBuffer();
+        int hash = input.size();
+        for (int i = 0; i < input.size(); i++) {
+            int offset = input.getTermOffset(i);
+            for (int c = offset; c < offset + input.getTermLength(i); c++) {
+                hash = 31 * hash + buffer[c];
+            }
+            hash = 31 * hash + input.getPositionIncrement(i);
+            hash = 31 * hash + input.getPositionLength(i);
+        }
+        // spread the high bits over the slot index
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return the entry of the input tokens, matched with the dictionary, or null
+     */
+    Entry get(PhraseDictionary dictionary, int hash, TokenBuffer input) {
+        Slots current = slots;
+        if (current.dictionary == dictionary) {
+            Entry entry = current.entries.get(hash & (size - 1));
+            if (entry != null && entry.matches(hash, input)) {
+                hits.increment();
+                return entry;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Store an entry matched with the dictionary, replacing the one in its slot. The entry is
+     * dropped if the cache already holds those of a newer dictionary.
+     */
+    void put(PhraseDictionary dictionary, Entry entry) {
+        Slots current = slots;
+        if (current.dictionary != dictionary) {
+            synchronized (this) {
+                current = slots;
+                if (current.dictionary != dictionary) {
+                    if (current.dictionary != null && dictionary.getVersion() < current.dictionary.getVersion()) {
+                        return;
+                    }
+                    current = new Slots(dictionary, size);
+                    slots = current;
+                }
+            }
+        }
+        Entry evicted = current.entries.getAndSet(entry.hash & (size - 1), entry);
+        if (evicted != null) {
+            evictions.increment();
+        }
+    }
+
+    /**
+     * @return the number of entries the cache holds at most
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the heap used by the slots and the entries they hold, the latter counted one by one
+     */
+    @Override
+    public long ramBytesUsed() {
+        AtomicReferenceArray<Entry> entries = slots.entries;
+        long bytes = BASE_RAM_BYTES_USED + RamUsageEstimator.alignObjectSize(
+                RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) RamUsageEstimator.NUM_BYTES_OBJECT_REF * size);
+        for (int i = 0; i < size; i++) {
+            Entry entry = entries.get(i);
+            if (entry != null) {
+                bytes += entry.ramBytesUsed();
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new LinkedHashMap<>();
+        metrics.put("outputCacheHits", (Gauge<Long>) this::getHits);
+        metrics.put("outputCacheMisses", (Gauge<Long>) this::getMisses);
+        metrics.put("outputCacheEvictions", (Gauge<Long>) this::getEvictions);
+        metrics.put("outputCacheRamBytesUsed", (Gauge<Long>) this::ramBytesUsed);
+        return Collections.unmodifiableMap(metrics);
+    }
+}
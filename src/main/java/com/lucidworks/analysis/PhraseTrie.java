@@ -0,0 +1,1063 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 ben.demott.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.lucidworks.analysis;
+
+import org.apache.lucene.analysis.CharArrayMap;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Accountables;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * A trie of auto phrases keyed by whole terms rather than characters.
+ * 
+ * Every distinct (non wildcard) term of the phrases is interned to an int term id when the trie
+ * is built, and nodes are keyed by term id. Input tokens are resolved to their term id once, with
+ * {@link #NO_TERM} for tokens that are in no phrase, and matching then only compares ints.
+ * 
+ * Each node represents one term of one or more phrases. A node is terminal when a phrase ends
+ * on it, and knows the maximum number of tokens any phrase below it can still consume. The
+ * wildcard term (TOKEN?) is stored as a dedicated child so matching can decide whether it
+ * consumes a token or not.
+ * 
+ * Matching walks one node per input token and stops as soon as no child matches, so the cost
+ * of a match attempt depends on the phrase length rather than on the number of phrases that
+ * share a first word.
+ * 
+ * Phrases without wildcards are also compiled into an Aho-Corasick automaton: every node reached
+ * through literal terms only gets a failure link (the longest proper suffix of its path that is
+ * also a path in the trie) and an output link (the nearest terminal on its failure chain). This
+ * lets a token stream be scanned for every literal phrase occurrence by consuming each token
+ * once, see {@link #advance(Node, int)}. Wildcard phrases still need to be matched
+ * from each start position, by simulating the trie as an NFA over a window of at most
+ * {@link #getMaxPhraseLength()} tokens, and only through nodes that lead to one, see
+ * {@link Node#leadsToWildcardPhrase()}.
+ * 
+ * The trie trades heap for matching speed: every phrase term is a node of its own, with the
+ * children and automaton links that let a token be matched in one step, so the trie takes
+ * several times the heap of a CharArraySet of the same phrases. {@link FSTPhraseDictionary}
+ * holds a large phrase set in less heap than the set itself, when that speed can be given up.
+ * 
+ * Large phrase sets can be compiled on a ForkJoinPool, see
+ * {@link #PhraseTrie(CharArraySet, Character, boolean, ForkJoinPool)}. The trie is the same as
+ * the one built serially, term ids included.
+ * 
+ * The heap used by the nodes, the phrases and the vocabulary is computed once built, see
+ * {@link #getChildResources()}.
+ */
+public final class PhraseTrie extends PhraseDictionary {
+
+    /**
+     * The term id of tokens that are not a term of any phrase.
+     */
+    public static final int NO_TERM = -1;
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(PhraseTrie.class);
+    private static final long VOCABULARY_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(CharArrayMap.class);
+    private static final long INTEGER_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(Integer.class);
+
+    private final Node root = new Node(0, false);
+    // folds the case of the terms looked up on the fly when the dictionary ignores case
+    private final CharArrayMap<Integer> vocabulary;
+    // rules out most tokens before they are looked up in the vocabulary, null when a phrase is
+    // only made of TOKEN? wildcards
+    private final VocabularyFilter vocabularyFilter;
+    private int size = 0;
+    // the heap used by the parts of the trie that do not change once it is built
+    private final long nodesRamBytesUsed;
+    private final long phrasesRamBytesUsed;
+    private final long vocabularyRamBytesUsed;
+
+    /**
+     * Build a trie from a set of phrases, each phrase being terms separated by whitespace.
+     * 
+     * @param phraseSet 
+     */
+    public PhraseTrie(CharArraySet phraseSet) {
+        this(phraseSet, ' ');
+    }
+
+    /**
+     * Build a trie from a set of phrases, each phrase being terms separated by whitespace.
+     * 
+     * @param phraseSet 
+     * @param replaceWhitespaceWith the character replacing whitespace in the emitted phrases
+     */
+    public PhraseTrie(CharArraySet phraseSet, Character replaceWhitespaceWith) {
+        this(phraseSet, replaceWhitespaceWith, false);
+    }
+
+    /**
+     * Build a trie from a set of phrases, each phrase being terms separated by whitespace.
+     * 
+     * @param phraseSet 
+     * @param replaceWhitespaceWith the character replacing whitespace in the emitted phrases
+     * @param ignoreCase true to match terms regardless of their case
+     */
+    public PhraseTrie(CharArraySet phraseSet, Character replaceWhitespaceWith, boolean ignoreCase) {
+        this(phraseSet, replaceWhitespaceWith, ignoreCase, null);
+    }
+
+    /**
+     * Build a trie from a set of phrases, each phrase being terms separated by whitespace, using
+     * the threads of a pool.
+     * 
+     * Phrases are compiled in parallel, then their terms are interned in the order of the set so
+     * term ids are those of a serial build. The phrases are partitioned by their first term, and
+     * the subtree of each first term is built and frozen by its own task. Only the root and the
+     * Aho-Corasick links, which span subtrees, are computed serially.
+     * 
+     * @param phraseSet 
+     * @param replaceWhitespaceWith the character replacing whitespace in the emitted phrases
+     * @param ignoreCase true to match terms regardless of their case
+     * @param pool the pool building the trie, null to build it in the calling thread
+     */
+    public PhraseTrie(CharArraySet phraseSet, Character replaceWhitespaceWith, boolean ignoreCase, ForkJoinPool pool) {
+        super(replaceWhitespaceWith, ignoreCase);
+        vocabulary = new CharArrayMap<>(16, ignoreCase);
+        if (pool != null && phraseSet != null) {
+            addAll(phraseSet, pool);
+            root.freezeChildren();
+            root.summarizeChildren();
+        } else {
+            if (phraseSet != null) {
+                for (Object aPhrase : phraseSet) {
+                    add((char[]) aPhrase);
+                }
+            }
+            root.freeze();
+            root.computeMaxRemainingDepth();
+            root.computeLeadsToWildcardPhrase();
+        }
+        computeFailureLinks();
+        int[] ordinal = new int[1];
+        boolean[] literalFree = new boolean[1];
+        visitPhraseNodes(node -> {
+            node.ordinal = ordinal[0]++;
+            literalFree[0] |= node.phrase.getMinTokens() == 0;
+        });
+        vocabularyFilter = literalFree[0] ? null : new VocabularyFilter(vocabulary.size(), ignoreCase);
+        if (vocabularyFilter != null) {
+            CharArrayMap<Integer>.EntryIterator terms = vocabulary.entrySet().iterator();
+            while (terms.hasNext()) {
+                vocabularyFilter.add(terms.nextKey());
+            }
+        }
+        long[] bytes = new long[2];
+        visitNodes(node -> {
+            bytes[0] += node.ramBytesUsed();
+            if (node.phrase != null) {
+                bytes[1] += node.phrase.ramBytesUsed();
+            }
+        });
+        nodesRamBytesUsed = bytes[0];
+        phrasesRamBytesUsed = bytes[1];
+        vocabularyRamBytesUsed = vocabularyRamBytesUsed();
+    }
+
+    /**
+     * CharArrayMap keeps the terms and their ids in two open addressing arrays, of 32 slots at
+     * first, doubled whenever they get more than 80% full. The terms are copies of those of the
+     * phrases, and ids below 128 are cached Integers.
+     */
+    private long vocabularyRamBytesUsed() {
+        int terms = vocabulary.size();
+        long slots = 32;
+        while (terms + (terms >> 2) > slots) {
+            slots <<= 1;
+        }
+        long termsRamBytesUsed = 0;
+        CharArrayMap<Integer>.EntryIterator keys = vocabulary.entrySet().iterator();
+        while (keys.hasNext()) {
+            termsRamBytesUsed += RamUsageEstimator.sizeOf(keys.nextKey());
+        }
+        return VOCABULARY_RAM_BYTES_USED
+                + 2 * RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + RamUsageEstimator.NUM_BYTES_OBJECT_REF * slots)
+                + termsRamBytesUsed
+                + Math.max(0, terms - 128) * INTEGER_RAM_BYTES_USED;
+    }
+
+    /**
+     * Breadth first computation of the Aho-Corasick failure and output links, over literal edges.
+     * Nodes below a wildcard are not part of the automaton and keep null links.
+     */
+    private void computeFailureLinks() {
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        root.failure = root;
+        queue.add(root);
+
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            for (int i = 0; i < node.childTermIds.length; i++) {
+                Node child = node.children[i];
+
+                Node failure = node == root ? root : advance(node.failure, node.childTermIds[i]);
+                child.failure = failure;
+                child.outputLink = failure.isLiteralTerminal() ? failure : failure.outputLink;
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Depth first walk of the nodes ending a phrase, always in the same order: children by term
+     * id, then the wildcard child. The ordinals of the phrases are their order in this walk.
+     */
+    private void visitPhraseNodes(Consumer<Node> visitor) {
+        visitNodes(node -> {
+            if (node.phrase != null) {
+                visitor.accept(node);
+            }
+        });
+    }
+
+    /**
+     * Depth first walk of every node, in the order of {@link #visitPhraseNodes(Consumer)}.
+     */
+    private void visitNodes(Consumer<Node> visitor) {
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            visitor.accept(node);
+            if (node.wildcardChild != null) {
+                stack.push(node.wildcardChild);
+            }
+            for (int i = node.children.length - 1; i >= 0; i--) {
+                stack.push(node.children[i]);
+            }
+        }
+    }
+
+    private void add(char[] phrase) {
+        CompiledPhrase compiled = CompiledPhrase.compile(phrase, getReplaceWhitespaceWith());
+        if (compiled == null) {
+            return;
+        }
+
+        Node node = root;
+        for (int i = 0; i < compiled.length(); i++) {
+            node = compiled.isWildcard(i) ? node.getOrAddWildcardChild() : node.getOrAddChild(intern(compiled.getTerm(i)));
+        }
+        if (node.phrase == null) {
+            size++;
+        }
+        node.phrase = compiled;
+    }
+
+    /**
+     * The parallel equivalent of calling add for each phrase of the set, and then freezing every
+     * subtree of the root.
+     */
+    private void addAll(CharArraySet phraseSet, ForkJoinPool pool) {
+        Object[] phrases = phraseSet.toArray();
+        CompiledPhrase[] compiled = new CompiledPhrase[phrases.length];
+        invoke(pool, () -> IntStream.range(0, phrases.length).parallel().forEach(
+                i -> compiled[i] = CompiledPhrase.compile((char[]) phrases[i], getReplaceWhitespaceWith())));
+
+        // interning in the order of the set, and partitioning by the child of the root reached
+        int[][] termIds = new int[phrases.length][];
+        int[] partitions = new int[phrases.length];
+        IdentityHashMap<Node, Integer> partitionOfNode = new IdentityHashMap<>();
+        ArrayList<Node> partitionNodes = new ArrayList<>();
+        for (int i = 0; i < compiled.length; i++) {
+            CompiledPhrase phrase = compiled[i];
+            if (phrase == null) {
+                partitions[i] = -1;
+                continue;
+            }
+            termIds[i] = new int[phrase.length()];
+            for (int t = 0; t < phrase.length(); t++) {
+                termIds[i][t] = phrase.isWildcard(t) ? NO_TERM : intern(phrase.getTerm(t));
+            }
+            Node first = termIds[i][0] == NO_TERM ? root.getOrAddWildcardChild() : root.getOrAddChild(termIds[i][0]);
+            Integer partition = partitionOfNode.get(first);
+            if (partition == null) {
+                partition = partitionNodes.size();
+                partitionOfNode.put(first, partition);
+                partitionNodes.add(first);
+            }
+            partitions[i] = partition;
+        }
+
+        // the phrases of each partition, still in the order of the set (a counting sort)
+        int[] starts = new int[partitionNodes.size() + 1];
+        for (int partition : partitions) {
+            if (partition >= 0) {
+                starts[partition + 1]++;
+            }
+        }
+        for (int p = 0; p < partitionNodes.size(); p++) {
+            starts[p + 1] += starts[p];
+        }
+        int[] order = new int[starts[partitionNodes.size()]];
+        int[] fill = Arrays.copyOf(starts, partitionNodes.size());
+        for (int i = 0; i < partitions.length; i++) {
+            if (partitions[i] >= 0) {
+                order[fill[partitions[i]]++] = i;
+            }
+        }
+
+        int[] added = new int[partitionNodes.size()];
+        invoke(pool, () -> IntStream.range(0, partitionNodes.size()).parallel().forEach(p -> {
+            Node first = partitionNodes.get(p);
+            for (int k = starts[p]; k < starts[p + 1]; k++) {
+                int i = order[k];
+                Node node = first;
+                for (int t = 1; t < termIds[i].length; t++) {
+                    node = termIds[i][t] == NO_TERM ? node.getOrAddWildcardChild() : node.getOrAddChild(termIds[i][t]);
+                }
+                if (node.phrase == null) {
+                    added[p]++;
+                }
+                node.phrase = compiled[i];
+            }
+            first.freeze();
+            first.computeMaxRemainingDepth();
+            first.computeLeadsToWildcardPhrase();
+        }));
+        for (int count : added) {
+            size += count;
+        }
+    }
+
+    /**
+     * Run a parallel stream in the pool rather than in the common pool, and wait for it.
+     */
+    private static void invoke(ForkJoinPool pool, Runnable task) {
+        try {
+            pool.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building the phrase trie", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the term id of a phrase term, assigning the next one if the term is new
+     */
+    private int intern(char[] term) {
+        Integer termId = vocabulary.get(term, 0, term.length);
+        if (termId == null) {
+            termId = vocabulary.size();
+            // when ignoring case the map folds the keys it stores in place, the phrase keeps its term
+            vocabulary.put(term.clone(), termId);
+        }
+        return termId;
+    }
+
+    /**
+     * @return the term id of the term in buffer[offset, offset + length), or {@link #NO_TERM} if
+     *         no phrase contains it
+     */
+    public int getTermId(char[] buffer, int offset, int length) {
+        if (vocabularyFilter != null && !vocabularyFilter.mightContain(buffer, offset, length)) {
+            return NO_TERM;
+        }
+        Integer termId = vocabulary.get(buffer, offset, length);
+        return termId == null ? NO_TERM : termId;
+    }
+
+    @Override
+    public VocabularyFilter getVocabularyFilter() {
+        return vocabularyFilter;
+    }
+
+    /**
+     * @return the number of distinct (non wildcard) terms of the phrases
+     */
+    public int getVocabularySize() {
+        return vocabulary.size();
+    }
+
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * Aho-Corasick transition: follow the term from state, falling back along failure links
+     * until a node has a matching literal child. Never returns null, the root is the state
+     * where no phrase is partially matched.
+     * 
+     * @param state a node that is part of the automaton (reached through literal terms only)
+     * @param termId the term id of the next token, terms in no phrase reset the automaton
+     * @return the node for the longest phrase prefix that is a suffix of the terms seen so far
+     */
+    public Node advance(Node state, int termId) {
+        if (termId == NO_TERM) {
+            return root;
+        }
+        while (true) {
+            Node child = state.getChild(termId);
+            if (child != null) {
+                return child;
+            }
+            if (state == root) {
+                return root;
+            }
+            state = state.failure;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int getMaxPhraseLength() {
+        return root.maxRemainingDepth;
+    }
+
+    @Override
+    public void forEachPhrase(ObjIntConsumer<CompiledPhrase> visitor) {
+        visitPhraseNodes(node -> visitor.accept(node.phrase, node.ordinal));
+    }
+
+    @Override
+    public PhraseMatcher newMatcher() {
+        return new Matcher(this);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        long bytes = BASE_RAM_BYTES_USED + nodesRamBytesUsed + phrasesRamBytesUsed + vocabularyRamBytesUsed;
+        if (vocabularyFilter != null) {
+            bytes += vocabularyFilter.ramBytesUsed();
+        }
+        PhraseHitCounts hitCounts = getHitCounts();
+        if (hitCounts != null) {
+            bytes += hitCounts.ramBytesUsed();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the heap used by the nodes, the compiled phrases, the vocabulary of term ids, the
+     *         vocabulary filter and the hit counts, those two when the trie has them
+     */
+    @Override
+    public Collection<Accountable> getChildResources() {
+        List<Accountable> resources = new ArrayList<>();
+        resources.add(Accountables.namedAccountable("nodes", nodesRamBytesUsed));
+        resources.add(Accountables.namedAccountable("phrases", phrasesRamBytesUsed));
+        resources.add(Accountables.namedAccountable("vocabulary", vocabularyRamBytesUsed));
+        if (vocabularyFilter != null) {
+            resources.add(Accountables.namedAccountable("vocabulary filter", vocabularyFilter.ramBytesUsed()));
+        }
+        PhraseHitCounts hitCounts = getHitCounts();
+        if (hitCounts != null) {
+            resources.add(Accountables.namedAccountable("hit counts", hitCounts.ramBytesUsed()));
+        }
+        return Collections.unmodifiableList(resources);
+    }
+
+    private static final int[] NO_TERM_IDS = new int[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+    private static final long NODE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(Node.class);
+
+    /**
+     * One term of one or more phrases.
+     */
+    public static final class Node {
+        private final int depth;
+        private final boolean viaWildcard;
+        // the children keyed by term id while the trie is built, then frozen into the sorted
+        // term ids and the children in the same order, searched with a binary search
+        private HashMap<Integer, Node> building;
+        private int[] childTermIds = NO_TERM_IDS;
+        private Node[] children = NO_CHILDREN;
+        private Node wildcardChild;
+        private CompiledPhrase phrase;
+        // the number of the phrase among the phrases of the trie, see visitPhraseNodes
+        private int ordinal = -1;
+        private int maxRemainingDepth;
+        private boolean leadsToWildcardPhrase;
+        private Node failure;
+        private Node outputLink;
+
+        private Node(int depth, boolean viaWildcard) {
+            this.depth = depth;
+            this.viaWildcard = viaWildcard;
+        }
+
+        /**
+         * @return the heap used by the node and its arrays of children, once frozen
+         */
+        private long ramBytesUsed() {
+            long bytes = NODE_RAM_BYTES_USED;
+            if (children != NO_CHILDREN) {
+                bytes += RamUsageEstimator.sizeOf(childTermIds) + RamUsageEstimator.shallowSizeOf(children);
+            }
+            return bytes;
+        }
+
+        private Node getOrAddWildcardChild() {
+            if (wildcardChild == null) {
+                wildcardChild = new Node(depth + 1, true);
+            }
+            return wildcardChild;
+        }
+
+        private Node getOrAddChild(int termId) {
+            if (building == null) {
+                building = new HashMap<>(4);
+            }
+            Node child = building.get(termId);
+            if (child == null) {
+                child = new Node(depth + 1, viaWildcard);
+                building.put(termId, child);
+            }
+            return child;
+        }
+
+        /**
+         * Turn the children added while building into the sorted arrays used for matching, in
+         * the whole subtree.
+         */
+        private void freeze() {
+            freezeChildren();
+            for (Node child : children) {
+                child.freeze();
+            }
+            if (wildcardChild != null) {
+                wildcardChild.freeze();
+            }
+        }
+
+        /**
+         * Turn the children of this node only into the sorted arrays used for matching.
+         */
+        private void freezeChildren() {
+            if (building != null) {
+                childTermIds = new int[building.size()];
+                int i = 0;
+                for (Integer termId : building.keySet()) {
+                    childTermIds[i++] = termId;
+                }
+                Arrays.sort(childTermIds);
+                children = new Node[childTermIds.length];
+                for (i = 0; i < childTermIds.length; i++) {
+                    children[i] = building.get(childTermIds[i]);
+                }
+                building = null;
+            }
+        }
+
+        /**
+         * Compute the depth and wildcard summaries of this node from those of its children,
+         * already computed.
+         */
+        private void summarizeChildren() {
+            int max = 0;
+            boolean leads = viaWildcard && phrase != null;
+            for (Node child : children) {
+                max = Math.max(max, child.maxRemainingDepth + 1);
+                leads |= child.leadsToWildcardPhrase;
+            }
+            if (wildcardChild != null) {
+                max = Math.max(max, wildcardChild.maxRemainingDepth + 1);
+                leads |= wildcardChild.leadsToWildcardPhrase;
+            }
+            maxRemainingDepth = max;
+            leadsToWildcardPhrase = leads;
+        }
+
+        private int computeMaxRemainingDepth() {
+            int max = 0;
+            for (Node child : children) {
+                max = Math.max(max, child.computeMaxRemainingDepth() + 1);
+            }
+            if (wildcardChild != null) {
+                max = Math.max(max, wildcardChild.computeMaxRemainingDepth() + 1);
+            }
+            maxRemainingDepth = max;
+            return max;
+        }
+
+        private boolean computeLeadsToWildcardPhrase() {
+            boolean leads = viaWildcard && phrase != null;
+            for (Node child : children) {
+                leads |= child.computeLeadsToWildcardPhrase();
+            }
+            if (wildcardChild != null) {
+                leads |= wildcardChild.computeLeadsToWildcardPhrase();
+            }
+            leadsToWildcardPhrase = leads;
+            return leads;
+        }
+
+        /**
+         * Find the child reached by a (non wildcard) term.
+         * 
+         * @param termId the term id, see {@link PhraseTrie#getTermId(char[], int, int)}
+         * @return the child node, or null if no phrase continues with this term
+         */
+        public Node getChild(int termId) {
+            if (termId == NO_TERM) {
+                return null;
+            }
+            int index = Arrays.binarySearch(childTermIds, termId);
+            return index < 0 ? null : children[index];
+        }
+
+        /**
+         * @return the child reached through a TOKEN? wildcard, or null
+         */
+        public Node getWildcardChild() {
+            return wildcardChild;
+        }
+
+        /**
+         * @return true if a phrase ends on this node
+         */
+        public boolean isTerminal() {
+            return phrase != null;
+        }
+
+        /**
+         * @return true if a phrase without any wildcard ends on this node
+         */
+        public boolean isLiteralTerminal() {
+            return phrase != null && !viaWildcard;
+        }
+
+        /**
+         * @return true if the path from the root to this node goes through a TOKEN? wildcard
+         */
+        public boolean isViaWildcard() {
+            return viaWildcard;
+        }
+
+        /**
+         * @return true if a phrase containing a wildcard ends on this node or below it
+         */
+        public boolean leadsToWildcardPhrase() {
+            return leadsToWildcardPhrase;
+        }
+
+        /**
+         * @return the nearest node on the failure chain a literal phrase ends on, or null
+         */
+        public Node getOutputLink() {
+            return outputLink;
+        }
+
+        /**
+         * @return the phrase ending on this node, or null if not terminal
+         */
+        public CompiledPhrase getPhrase() {
+            return phrase;
+        }
+
+        /**
+         * @return the number of terms between the root and this node
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @return the largest number of tokens a phrase below this node can still consume
+         */
+        public int getMaxRemainingDepth() {
+            return maxRemainingDepth;
+        }
+    }
+
+    /**
+     * Finds literal phrases with the Aho-Corasick automaton while tokens are buffered, and
+     * wildcard phrases by walking the trie from the start token.
+     */
+    private static final class Matcher extends PhraseMatcher {
+        private final PhraseTrie trie;
+
+        // Aho-Corasick state after the last buffered token, and for each buffered token the
+        // longest literal (wildcard free) phrase starting on it, or null. Plain arrays rather than
+        // lists, so dropping emitted tokens does not allocate.
+        private Node automatonState;
+        private Node[] literalMatches = new Node[32];
+
+        // the term id of each buffered token, resolved once when the token is buffered
+        private int[] termIds = new int[32];
+        private int termIdCount = 0;
+        // the number of tokens buffered since the reset that are terms of a phrase
+        private int vocabularyTokens = 0;
+
+        // the longest phrase found by the current match attempt, and the number of tokens it spans
+        private Node phraseMatch;
+        private int phraseWordsUsed;
+
+        // the trie nodes reached after the tokens consumed so far, and after the next token
+        private NodeSet states = new NodeSet();
+        private NodeSet nextStates = new NodeSet();
+
+        // the walk of the token graph, see matchGraph
+        private final GraphWalk walk = new GraphWalk();
+
+        private Matcher(PhraseTrie trie) {
+            this.trie = trie;
+            this.automatonState = trie.root;
+        }
+
+        @Override
+        public void reset() {
+            Arrays.fill(literalMatches, 0, termIdCount, null);
+            termIdCount = 0;
+            vocabularyTokens = 0;
+            automatonState = trie.root;
+            states.clear();
+            nextStates.clear();
+        }
+
+        @Override
+        public void tokensRemoved(int count) {
+            System.arraycopy(literalMatches, count, literalMatches, 0, termIdCount - count);
+            Arrays.fill(literalMatches, termIdCount - count, termIdCount, null);
+            System.arraycopy(termIds, count, termIds, 0, termIdCount - count);
+            termIdCount -= count;
+        }
+
+        @Override
+        public boolean mayMatch() {
+            return trie.vocabularyFilter == null || vocabularyTokens > 0;
+        }
+
+        @Override
+        public boolean canStartPhrase(TokenBuffer tokens, int index) {
+            return trie.root.wildcardChild != null || trie.root.getChild(termIds[index]) != null;
+        }
+
+        /**
+         * Resolve the term id of the token that was just buffered, this is the only lookup by
+         * term text, and the vocabulary filter answers it for most tokens. Then feed it to the Aho-Corasick automaton, and record every
+         * literal phrase ending on it against the token the phrase starts on, if it is the longest
+         * phrase starting there. Each token is consumed exactly once, there is no restart per
+         * position.
+         */
+        @Override
+        public void tokenAdded(TokenBuffer tokens) {
+            int lastTokenIdx = tokens.size() - 1;
+            int termId = trie.getTermId(tokens.getTermBuffer(), tokens.getTermOffset(lastTokenIdx),
+                    tokens.getTermLength(lastTokenIdx));
+            termIds = ArrayUtil.grow(termIds, termIdCount + 1);
+            literalMatches = ArrayUtil.grow(literalMatches, termIdCount + 1);
+            termIds[termIdCount++] = termId;
+            if (termId != NO_TERM) {
+                vocabularyTokens++;
+            }
+            automatonState = trie.advance(automatonState, termId);
+
+            Node output = automatonState.isLiteralTerminal() ? automatonState : automatonState.outputLink;
+            int outputs = 0;
+            for (; output != null; output = output.outputLink, outputs++) {
+                int startIdx = lastTokenIdx - output.depth + 1;
+                if (startIdx < 0) {
+                    // started on a token that was already emitted and dropped
+                    continue;
+                }
+                Node longest = literalMatches[startIdx];
+                if (longest == null || output.depth > longest.depth) {
+                    literalMatches[startIdx] = output;
+                }
+            }
+            addCandidates(outputs);
+        }
+
+        @Override
+        public int longestMatch(TokenBuffer tokens, int start) {
+            if (!isLinear(tokens, start, trie.getMaxPhraseLength())) {
+                return matchGraph(tokens, start);
+            }
+
+            // The longest literal phrase starting here was found by the automaton while buffering.
+            Node literalMatch = literalMatches[start];
+            phraseMatch = literalMatch;
+            phraseWordsUsed = literalMatch == null ? 0 : literalMatch.depth;
+
+            if (trie.root.leadsToWildcardPhrase) {
+                matchWildcardPhrases(tokens, start);
+            }
+            setLinearMatch(start, phraseWordsUsed);
+            return phraseWordsUsed;
+        }
+
+        /**
+         * Find the phrase consuming the most tokens from start where tokens are stacked, literal
+         * and wildcard phrases alike. The automaton scanned the tokens as a plain sequence, so
+         * its matches do not apply here. The walk keeps, after each number of consumed tokens,
+         * the set of (trie node, next group) pairs reached by every path of the graph and every
+         * way of skipping or consuming the TOKEN? wildcards, each pair at most once. It ends
+         * after the longest phrase, or as soon as the set is empty.
+         */
+        private int matchGraph(TokenBuffer tokens, int start) {
+            phraseMatch = null;
+            phraseWordsUsed = 0;
+            int bestEntry = -1;
+
+            walk.clear();
+            walk.add(trie.root, start, -1, -1, 0);
+            walk.addSkippedWildcards(0);
+            addWildcardExpansions(walk.size - 1);
+
+            int levelStart = 0;
+            int maxLength = trie.getMaxPhraseLength();
+            for (int consumed = 1; consumed <= maxLength && levelStart < walk.size; consumed++) {
+                int levelEnd = walk.size;
+                for (int e = levelStart; e < levelEnd; e++) {
+                    int next = walk.next[e];
+                    if (next < 0) {
+                        continue;
+                    }
+                    // the first token must be the start token, not the tokens stacked with it
+                    int nextEnd = consumed == 1 ? start + 1 : tokens.getGroupEnd(next);
+                    Node node = walk.nodes[e];
+                    for (int tokenIdx = next; tokenIdx < nextEnd; tokenIdx++) {
+                        if (tokens.isConsumed(tokenIdx)) {
+                            continue;
+                        }
+                        int after = tokens.getNextGroupStart(tokenIdx);
+                        walk.add(node.getChild(termIds[tokenIdx]), after, tokenIdx, e, levelEnd);
+                        // the TOKEN? consumes this token
+                        int before = walk.size;
+                        walk.add(node.wildcardChild, after, tokenIdx, e, levelEnd);
+                        addWildcardExpansions(walk.size - before);
+                    }
+                }
+                // or the TOKEN? is skipped
+                int before = walk.size;
+                walk.addSkippedWildcards(levelEnd);
+                addWildcardExpansions(walk.size - before);
+
+                // literal phrases win over wildcard phrases consuming as many tokens
+                int terminal = -1;
+                for (int e = levelEnd; e < walk.size; e++) {
+                    Node node = walk.nodes[e];
+                    if (node.phrase != null && (terminal < 0 || !node.viaWildcard)) {
+                        terminal = e;
+                        if (!node.viaWildcard) {
+                            break;
+                        }
+                    }
+                }
+                if (terminal >= 0) {
+                    bestEntry = terminal;
+                    phraseMatch = walk.nodes[terminal];
+                    phraseWordsUsed = consumed;
+                }
+                levelStart = levelEnd;
+            }
+
+            addCandidates(walk.size - 1);
+
+            for (int e = bestEntry, k = phraseWordsUsed - 1; k >= 0; e = walk.parents[e], k--) {
+                setMatchedToken(k, walk.tokens[e]);
+            }
+            return phraseWordsUsed;
+        }
+
+        @Override
+        public CompiledPhrase getPhrase() {
+            return phraseMatch == null ? null : phraseMatch.phrase;
+        }
+
+        @Override
+        public int getPhraseOrdinal() {
+            return phraseMatch.ordinal;
+        }
+
+        /**
+         * Find the wildcard phrase consuming the most tokens from start, keeping it in phraseMatch
+         * if it is longer than the literal match. The trie is simulated as an NFA: after each
+         * token the set of nodes reached by every way of skipping or consuming the TOKEN?
+         * wildcards seen so far is kept, each node at most once. Every token of the window is
+         * looked at once per node in the set, so an attempt costs O(phraseLength x window)
+         * instead of exploring both options of every wildcard recursively.
+         * Only nodes leading to a wildcard phrase are kept, literal phrases are left to the
+         * automaton. The walk ends as soon as the set is empty.
+         * Only used where the tokens are a plain sequence, see matchGraph otherwise.
+         */
+        private void matchWildcardPhrases(TokenBuffer tokens, int start) {
+            states.clear();
+            states.add(trie.root);
+            int skipped = states.size;
+            states.addSkippedWildcards();
+            addWildcardExpansions(states.size - skipped);
+
+            int end = Math.min(tokens.size(), start + trie.getMaxPhraseLength());
+            for (int tokenIdx = start; tokenIdx < end && states.size > 0; tokenIdx++) {
+                int termId = termIds[tokenIdx];
+                nextStates.clear();
+                for (int i = 0; i < states.size; i++) {
+                    Node node = states.nodes[i];
+                    nextStates.add(node.getChild(termId));
+                    // the TOKEN? consumes this token
+                    int before = nextStates.size;
+                    nextStates.add(node.wildcardChild);
+                    addWildcardExpansions(nextStates.size - before);
+                }
+                // or the TOKEN? is skipped
+                int before = nextStates.size;
+                nextStates.addSkippedWildcards();
+                addWildcardExpansions(nextStates.size - before);
+                addCandidates(nextStates.size);
+
+                int consumed = tokenIdx + 1 - start;
+                if (consumed > phraseWordsUsed) {
+                    for (int i = 0; i < nextStates.size; i++) {
+                        Node node = nextStates.nodes[i];
+                        if (node.phrase != null && node.viaWildcard) {
+                            LazyLog.logDebug("Found potential longest phrase match for '%s'.", node.phrase.getOutput());
+                            phraseMatch = node;
+                            phraseWordsUsed = consumed;
+                            break;
+                        }
+                    }
+                }
+
+                NodeSet swap = states;
+                states = nextStates;
+                nextStates = swap;
+            }
+        }
+    }
+
+    /**
+     * The (trie node, next group) pairs reached while walking the token graph, for every number
+     * of consumed tokens one after the other, reused between match attempts. Each pair remembers
+     * the token it consumed last and the pair it came from, so the path of a match can be rebuilt.
+     */
+    private static final class GraphWalk {
+        private Node[] nodes = new Node[16];
+        // the first token of the group the next token is taken from, -1 past the buffered tokens
+        private int[] next = new int[16];
+        private int[] tokens = new int[16];
+        private int[] parents = new int[16];
+        private int size;
+
+        private void clear() {
+            Arrays.fill(nodes, 0, size, null);
+            size = 0;
+        }
+
+        /**
+         * Add a pair unless a pair for the same node and group was added since levelStart.
+         * 
+         * @param token the token consumed to reach the node
+         * @param parent the pair the token was consumed from
+         */
+        private void add(Node node, int nextToken, int token, int parent, int levelStart) {
+            if (node == null) {
+                return;
+            }
+            for (int i = levelStart; i < size; i++) {
+                if (nodes[i] == node && next[i] == nextToken) {
+                    return;
+                }
+            }
+            if (size == nodes.length) {
+                nodes = ArrayUtil.grow(nodes, size + 1);
+                next = ArrayUtil.grow(next, nodes.length);
+                tokens = ArrayUtil.grow(tokens, nodes.length);
+                parents = ArrayUtil.grow(parents, nodes.length);
+            }
+            nodes[size] = node;
+            next[size] = nextToken;
+            tokens[size] = token;
+            parents[size] = parent;
+            size++;
+        }
+
+        /**
+         * Close the pairs added since levelStart over TOKEN? wildcards not consuming any token.
+         * The pair reached stands for the same consumed token as the pair it was skipped from.
+         */
+        private void addSkippedWildcards(int levelStart) {
+            for (int i = levelStart; i < size; i++) {
+                add(nodes[i].wildcardChild, next[i], tokens[i], parents[i], levelStart);
+            }
+        }
+    }
+
+    /**
+     * A small set of trie nodes, reused between match attempts. Sets hold a handful of nodes so
+     * membership is a linear scan.
+     */
+    private static final class NodeSet {
+        private Node[] nodes = new Node[8];
+        private int size;
+
+        private void clear() {
+            Arrays.fill(nodes, 0, size, null);
+            size = 0;
+        }
+
+        /**
+         * Add a node if it leads to a wildcard phrase and is not in the set yet.
+         */
+        private void add(Node node) {
+            if (node == null || !node.leadsToWildcardPhrase) {
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                if (nodes[i] == node) {
+                    return;
+                }
+            }
+            if (size == nodes.length) {
+                nodes = ArrayUtil.grow(nodes, size + 1);
+            }
+            nodes[size++] = node;
+        }
+
+        /**
+         * Close the set over TOKEN? wildcards not consuming any token, including chains of them.
+         */
+        private void addSkippedWildcards() {
+            for (int i = 0; i < size; i++) {
+                add(nodes[i].wildcardChild);
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 ben.demott.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.lucidworks.analysis;
+
+import org.apache.lucene.util.ArrayUtil;
+
+import java.util.Arrays;
+
+import static java.lang.System.arraycopy;
+
+/**
+ * The tokens buffered by an AutoPhrasingTokenFilter, stored column by column in primitive arrays.
+ *
+ * The text of every term is appended to a single char[] arena, each token keeping the offset and
+ * length of its term in the arena. Offsets and position increments are plain int[] columns. The
+ * arrays only grow, and are reused after {@link #clear()} and {@link #removeFirst(int)}, so once
+ * they are large enough buffering a token allocates nothing.
+ * 
+ * The buffer also records the token graph: the absolute position and the position length of
+ * each token, and its group. Tokens stacked on the same position (a position increment of 0)
+ * share a group, and groups are numbered without the gaps left by removed tokens. A token is
+ * followed in the graph by the tokens of the first group starting at or after its end position,
+ * see {@link #getNextGroupStart(int)}.
+ */
+public final class TokenBuffer {
+
+    private char[] terms = new char[256];
+    private int termsUsed = 0;
+
+    private int[] termOffsets = new int[32];
+    private int[] termLengths = new int[32];
+    private int[] startOffsets = new int[32];
+    private int[] endOffsets = new int[32];
+    private int[] increments = new int[32];
+    private int[] positionLengths = new int[32];
+    private int[] positions = new int[32];
+    private int[] groups = new int[32];
+    private boolean[] consumed = new boolean[32];
+    private int size = 0;
+
+    // the position and group of the last token added, they keep counting across removeFirst
+    private int lastPosition = -1;
+    private int lastGroup = -1;
+
+    /**
+     * Append a token of position length 1, copying length chars of its term from termBuffer.
+     */
+    public void add(char[] termBuffer, int length, int startOffset, int endOffset, int increment) {
+        add(termBuffer, length, startOffset, endOffset, increment, 1);
+    }
+
+    /**
+     * Append a token, copying length chars of its term from termBuffer.
+     */
+    public void add(char[] termBuffer, int length, int startOffset, int endOffset, int increment, int positionLength) {
+        if (size == termOffsets.length) {
+            // every column has the same length, so they all grow to the same new length
+            termOffsets = ArrayUtil.grow(termOffsets, size + 1);
+            termLengths = ArrayUtil.grow(termLengths, size + 1);
+            startOffsets = ArrayUtil.grow(startOffsets, size + 1);
+            endOffsets = ArrayUtil.grow(endOffsets, size + 1);
+            increments = ArrayUtil.grow(increments, size + 1);
+            positionLengths = ArrayUtil.grow(positionLengths, size + 1);
+            positions = ArrayUtil.grow(positions, size + 1);
+            groups = ArrayUtil.grow(groups, size + 1);
+            // ArrayUtil has no boolean[] grow, oversize this column to the length of the others
+            consumed = Arrays.copyOf(consumed, termOffsets.length);
+        }
+        terms = ArrayUtil.grow(terms, termsUsed + length);
+        arraycopy(termBuffer, 0, terms, termsUsed, length);
+
+        termOffsets[size] = termsUsed;
+        termLengths[size] = length;
+        startOffsets[size] = startOffset;
+        endOffsets[size] = endOffset;
+        increments[size] = increment;
+        positionLengths[size] = Math.max(positionLength, 1);
+        // the first token of a stream starts a group even if its increment is 0
+        if (increment > 0 || lastGroup < 0) {
+            lastPosition += Math.max(increment, 1);
+            lastGroup++;
+        }
+        positions[size] = lastPosition;
+        groups[size] = lastGroup;
+        consumed[size] = false;
+        termsUsed += length;
+        size++;
+    }
+
+    /**
+     * Drop the first count tokens, the token at index count becoming the token at index 0.
+     * Positions and groups keep counting from the tokens that were dropped.
+     */
+    public void removeFirst(int count) {
+        if (count <= 0) {
+            return;
+        }
+        if (count >= size) {
+            clear();
+            return;
+        }
+        int remaining = size - count;
+        int termsStart = termOffsets[count];
+        arraycopy(terms, termsStart, terms, 0, termsUsed - termsStart);
+        termsUsed -= termsStart;
+
+        arraycopy(termOffsets, count, termOffsets, 0, remaining);
+        arraycopy(termLengths, count, termLengths, 0, remaining);
+        arraycopy(startOffsets, count, startOffsets, 0, remaining);
+        arraycopy(endOffsets, count, endOffsets, 0, remaining);
+        arraycopy(increments, count, increments, 0, remaining);
+        arraycopy(positionLengths, count, positionLengths, 0, remaining);
+        arraycopy(positions, count, positions, 0, remaining);
+        arraycopy(groups, count, groups, 0, remaining);
+        arraycopy(consumed, count, consumed, 0, remaining);
+        for (int i = 0; i < remaining; i++) {
+            termOffsets[i] -= termsStart;
+        }
+        size = remaining;
+    }
+
+    /**
+     * Forget every token, keeping the arrays for reuse. The next token added starts a new stream.
+     */
+    public void clear() {
+        size = 0;
+        termsUsed = 0;
+        lastPosition = -1;
+        lastGroup = -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the arena holding the text of every buffered term, only valid until the next add
+     */
+    public char[] getTermBuffer() {
+        return terms;
+    }
+
+    /**
+     * @return where the term of the token at index starts in {@link #getTermBuffer()}
+     */
+    public int getTermOffset(int index) {
+        return termOffsets[index];
+    }
+
+    public int getTermLength(int index) {
+        return termLengths[index];
+    }
+
+    public int getStartOffset(int index) {
+        return startOffsets[index];
+    }
+
+    public int getEndOffset(int index) {
+        return endOffsets[index];
+    }
+
+    public int getPositionIncrement(int index) {
+        return increments[index];
+    }
+
+    public int getPositionLength(int index) {
+        return positionLengths[index];
+    }
+
+    /**
+     * @return the absolute position of the token in the stream
+     */
+    public int getPosition(int index) {
+        return positions[index];
+    }
+
+    /**
+     * @return the group of the token, tokens at the same position share a group
+     */
+    public int getGroup(int index) {
+        return groups[index];
+    }
+
+    /**
+     * @return the group of the last token added, -1 if none was added since {@link #clear()}
+     */
+    public int getLastGroup() {
+        return lastGroup;
+    }
+
+    /**
+     * @return true if the token was consumed by a phrase and must not be matched or emitted again
+     */
+    public boolean isConsumed(int index) {
+        return consumed[index];
+    }
+
+    public void setConsumed(int index) {
+        consumed[index] = true;
+    }
+
+    /**
+     * @return true if the token shares its group with the token before it
+     */
+    public boolean isStacked(int index) {
+        return index > 0 && groups[index] == groups[index - 1];
+    }
+
+    /**
+     * @return the index of the first token after the group of the token at index
+     */
+    public int getGroupEnd(int index) {
+        int end = index + 1;
+        while (end < size && groups[end] == groups[index]) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Find the tokens following a token in the graph: the first group starting at or after the
+     * position the token ends on.
+     * 
+     * @return the index of the first token of that group, or -1 if it is not buffered (yet)
+     */
+    public int getNextGroupStart(int index) {
+        int end = positions[index] + positionLengths[index];
+        // most tokens are followed by the very next one
+        int next = index + 1;
+        if (next < size && positions[next] >= end) {
+            return next;
+        }
+        int low = next;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (positions[mid] < end) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low < size ? low : -1;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 ben.demott.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.lucidworks.analysis;
+
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.IOException;
+
+/**
+ * A Bloom filter over the terms of the phrases of a dictionary, so the tokens that are in no
+ * phrase, most of them, are told apart without looking them up in the dictionary itself.
+ *
+ * It answers false for a term no phrase has, and true for every term a phrase has, as well as for
+ * about 2% of the other terms. A term is hashed once, code point by code point (folded to lower
+ * case when ignoring case, as CharArrayMap does), and that hash gives the NUM_HASHES bits tested.
+ * It takes BITS_PER_TERM to 2 * BITS_PER_TERM bits per term, the number of bits being a power of
+ * 2, and at most 128MB.
+ */
+public final class VocabularyFilter implements Accountable {
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(VocabularyFilter.class);
+
+    private static final int BITS_PER_TERM = 10;
+    private static final int NUM_HASHES = 3;
+
+    private final long[] bits;
+    private final int mask;
+    private final boolean ignoreCase;
+
+    /**
+     * An empty filter, the terms are then added with {@link #add(char[])}.
+     *
+     * @param terms the number of terms that will be added
+     * @param ignoreCase true if terms are matched regardless of their case
+     */
+    public VocabularyFilter(int terms, boolean ignoreCase) {
+        long size = Math.max(64, Long.highestOneBit(Math.max(1, (long) terms * BITS_PER_TERM) - 1) << 1);
+        this.bits = new long[(int) (Math.min(size, 1L << 30) >>> 6)];
+        this.mask = bits.length * 64 - 1;
+        this.ignoreCase = ignoreCase;
+    }
+
+    private VocabularyFilter(long[] bits, boolean ignoreCase) {
+        this.bits = bits;
+        this.mask = bits.length * 64 - 1;
+        this.ignoreCase = ignoreCase;
+    }
+
+    public void add(char[] term) {
+        long hash = hash(term, 0, term.length);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if no phrase has the term in buffer[offset, offset + length), true if one may
+     */
+    public boolean mightContain(char[] buffer, int offset, int length) {
+        long hash = hash(buffer, offset, length);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of bits of the filter
+     */
+    int bitCount() {
+        return bits.length * 64;
+    }
+
+    /**
+     * FNV-1a over the code points of the term, and the finalizer of MurmurHash3 so each half of
+     * the hash is usable on its own.
+     */
+    private long hash(char[] buffer, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        int end = offset + length;
+        for (int i = offset; i < end; ) {
+            int codePoint = buffer[i];
+            if (Character.isHighSurrogate(buffer[i])) {
+                codePoint = Character.codePointAt(buffer, i, end);
+            }
+            i += Character.charCount(codePoint);
+            if (ignoreCase) {
+                codePoint = Character.toLowerCase(codePoint);
+            }
+            hash = (hash ^ codePoint) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return BASE_RAM_BYTES_USED + RamUsageEstimator.sizeOf(bits);
+    }
+
+    /**
+     * Write the bits of the filter, see {@link #read(DataInput, boolean)}.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeVInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * Read a filter written by {@link #write(DataOutput)}.
+     */
+    static VocabularyFilter read(DataInput in, boolean ignoreCase) throws IOException {
+        long[] bits = new long[in.readVInt()];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = in.readLong();
+        }
+        return new VocabularyFilter(bits, ignoreCase);
+    }
+}
@@ -0,0 +1,52 @@
+package com.lucidworks.analysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import org.apache.lucene.analysis.util.ClasspathResourceLoader;
+import org.apache.lucene.analysis.util.ResourceLoader;
+
+/**
+ * Serves resources from memory, and classes from the classpath.
+ */
+class MapResourceLoader implements ResourceLoader {
+    final Map<String, byte[]> resources = new HashMap<>();
+    final ResourceLoader classes = new ClasspathResourceLoader(MapResourceLoader.class);
+
+    void put(String name, String content) {
+        resources.put(name, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    void putGzipped(String name, String content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        resources.put(name, bytes.toByteArray());
+    }
+
+    @Override
+    public InputStream openResource(String resource) throws IOException {
+        byte[] content = resources.get(resource);
+        if (content == null) {
+            throw new FileNotFoundException(resource);
+        }
+        return new ByteArrayInputStream(content);
+    }
+
+    @Override
+    public <T> Class<? extends T> findClass(String cname, Class<T> expectedType) {
+        return classes.findClass(cname, expectedType);
+    }
+
+    @Override
+    public <T> T newInstance(String cname, Class<T> expectedType) {
+        return classes.newInstance(cname, expectedType);
+    }
+}
@@ -0,0 +1,150 @@
+package com.lucidworks.analysis;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Fails when a reused AutoPhrasingTokenFilter allocates more than a budget of bytes per token once
+ * it reached its steady state, so an allocation on the hot path is caught by the build rather than
+ * by the garbage collector of the indexers.
+ *
+ * The budget is 0 by default and can be raised with -Dtests.allocation.budget=bytes per token.
+ * Allocations are counted by the HotSpot per thread allocation counter, the test is skipped on
+ * JVMs that do not have it. The JMH benchmarks give the same figure with -prof gc, see the README.
+ */
+public class TestAllocationBudget {
+
+    private static final double BUDGET = Double.parseDouble(System.getProperty("tests.allocation.budget", "0"));
+
+    private static final String[] PHRASES = {
+            "wheel chair", "wheel chair ramp", "new york", "new york city", "pay TOKEN? bill", "social security number"};
+
+    /**
+     * A stream of filler words, phrases and partial phrases.
+     */
+    private static String document(Random random, int length) {
+        String[] words = {"the", "a", "of", "wheel", "new", "york", "pay", "my", "bill", "chair", "ramp", "security"};
+        StringBuilder document = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            document.append(i % 7 == 0 ? PHRASES[random.nextInt(PHRASES.length)] : words[random.nextInt(words.length)]);
+            document.append(' ');
+        }
+        return document.toString();
+    }
+
+    /**
+     * @return the bytes the analysis of the documents allocated per token, after a warm up
+     */
+    private static double bytesPerToken(PhraseDictionary dictionary, boolean streaming, boolean includeTokens,
+                                        PhraseOutputCache cache) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        Random random = new Random(42);
+        String[] documents = new String[16];
+        for (int i = 0; i < documents.length; i++) {
+            // short enough to be replayed from the cache when there is one
+            documents[i] = document(random, cache == null ? 500 : 50);
+        }
+
+        WhitespaceTokenizer tokenizer = new WhitespaceTokenizer();
+        AutoPhrasingTokenFilter filter = new AutoPhrasingTokenFilter(tokenizer, dictionary);
+        filter.setReplaceWhitespaceWith('_');
+        filter.setStreaming(streaming);
+        filter.setIncludeTokens(includeTokens);
+        filter.setOutputCache(cache);
+
+        // the buffers grow to their final size and the hot path gets compiled during the warm up
+        for (int i = 0; i < 200; i++) {
+            analyze(tokenizer, filter, new StringReader(documents[i % documents.length]));
+        }
+
+        // the readers are the only thing the caller allocates, so they are created up front
+        StringReader[] readers = new StringReader[documents.length * 8];
+        // the best of a few rounds, a round can still see the compiler finishing its work
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < 5 && best > BUDGET; round++) {
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = new StringReader(documents[i % documents.length]);
+            }
+            long tokens = 0;
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (StringReader reader : readers) {
+                tokens += analyze(tokenizer, filter, reader);
+            }
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+            best = Math.min(best, (double) allocated / tokens);
+        }
+        return best;
+    }
+
+    private static long analyze(WhitespaceTokenizer tokenizer, TokenStream filter, StringReader reader) throws IOException {
+        tokenizer.setReader(reader);
+        filter.reset();
+        long tokens = 0;
+        while (filter.incrementToken()) {
+            tokens++;
+        }
+        filter.end();
+        filter.close();
+        return tokens;
+    }
+
+    private static void assumeAllocationCounted() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("the JVM does not count the bytes allocated per thread",
+                threads instanceof com.sun.management.ThreadMXBean
+                        && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()
+                        && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemoryEnabled());
+    }
+
+    private static void assertWithinBudget(String name, PhraseDictionary dictionary) throws IOException {
+        for (boolean streaming : new boolean[]{false, true}) {
+            for (boolean includeTokens : new boolean[]{false, true}) {
+                double bytesPerToken = bytesPerToken(dictionary, streaming, includeTokens, null);
+                assertTrue(String.format("%s with streaming=%s includeTokens=%s allocated %.2f bytes per token, the budget is %.2f",
+                                name, streaming, includeTokens, bytesPerToken, BUDGET),
+                        bytesPerToken <= BUDGET);
+            }
+        }
+    }
+
+    private static CharArraySet getPhraseSets() {
+        return new CharArraySet(Arrays.asList(PHRASES), false);
+    }
+
+    @Test
+    public void testTrieSteadyStateAllocation() throws IOException {
+        assumeAllocationCounted();
+        assertWithinBudget("trie", new PhraseTrie(getPhraseSets(), '_'));
+    }
+
+    @Test
+    public void testOutputCacheReplayAllocation() throws IOException {
+        assumeAllocationCounted();
+        for (boolean includeTokens : new boolean[]{false, true}) {
+            // large enough for the documents not to evict each other, a miss records a new entry
+            PhraseOutputCache cache = new PhraseOutputCache(1024, PhraseOutputCache.DEFAULT_MAX_TOKENS);
+            double bytesPerToken = bytesPerToken(new PhraseTrie(getPhraseSets(), '_'), false, includeTokens, cache);
+            assertTrue(String.format("replaying includeTokens=%s allocated %.2f bytes per token, the budget is %.2f",
+                            includeTokens, bytesPerToken, BUDGET),
+                    bytesPerToken <= BUDGET);
+        }
+    }
+
+    @Test
+    public void testFSTSteadyStateAllocation() throws IOException {
+        assumeAllocationCounted();
+        assertWithinBudget("fst", new FSTPhraseDictionary(getPhraseSets(), '_'));
+    }
+}
@@ -26,6 +26,8 @@ public class TestAutoPhrasingParameters extends TestCase {
         assertEquals(DefaultIgnoreCase, autoPhrasingParameters.getIgnoreCase());
         assertEquals(DefaultPhraseSetFiles, autoPhrasingParameters.getPhraseSetFiles());
         assertEquals(0, autoPhrasingParameters.getIndividualPhraseSetFiles().size());
+        assertFalse(autoPhrasingParameters.getIncludeTokens());
+        assertFalse(autoPhrasingParameters.getCountPhraseHits());
     }
 
     public void testConstructorWithSolrParams() {
@@ -38,6 +40,7 @@ public class TestAutoPhrasingParameters extends TestCase {
         assertEquals(PhrasesOneFile, autoPhrasingParameters.getPhraseSetFiles());
         assertEquals(1, autoPhrasingParameters.getIndividualPhraseSetFiles().size());
         assertEquals(PhrasesOneFile, autoPhrasingParameters.getIndividualPhraseSetFiles().get(0));
+        assertTrue(autoPhrasingParameters.getIncludeTokens());
     }
 
     public void testConstructorNoIgnoreCase(){
@@ -71,6 +74,7 @@ public class TestAutoPhrasingParameters extends TestCase {
         params.add("replaceWhitespaceWith", ReplaceWhitespaceWith);
         params.add("ignoreCase", IgnoreCase);
         params.add("phrases", PhrasesOneFile);
+        params.add("includeTokens", true);
 
         return SolrParams.toSolrParams(params);
     }
@@ -0,0 +1,71 @@
+package com.lucidworks.analysis;
+
+import java.util.Arrays;
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.solr.common.util.NamedList;
+
+public class TestAutoPhrasingQParserPlugin extends TestCase {
+
+    private static String phrase(String query) {
+        CharArraySet phraseSets = new CharArraySet(Arrays.asList(
+                "income tax", "tax refund", "property tax", "new york", "new york city"), false);
+        return AutoPhrasingQParserPlugin.phrase(query, new AutoPhrasingAnalyzer(phraseSets, '_'));
+    }
+
+    public void testPlainQuery() {
+        assertEquals("my income_tax", phrase("my income tax"));
+        assertEquals("new_york_city hotels", phrase("new york city hotels"));
+        assertEquals("no phrase here", phrase("no phrase here"));
+        assertEquals("", phrase(""));
+    }
+
+    public void testOperatorsStayOnPhrase() {
+        assertEquals("+new_york -property_tax", phrase("+new york -property tax"));
+        assertEquals("title:new_york^2 text:(income_tax)", phrase("title:new york^2 text:(income tax)"));
+        // an operator or a field prefix on the second term keeps the terms apart
+        assertEquals("new +york title:new text:york", phrase("new +york title:new text:york"));
+        assertEquals("new^2 york", phrase("new^2 york"));
+    }
+
+    public void testSyntaxLeftAlone() {
+        assertEquals("\"new york\" income_tax", phrase("\"new york\" income tax"));
+        assertEquals("title:\"income tax\"~2 new_york", phrase("title:\"income tax\"~2 new york"));
+        assertEquals("new AND york", phrase("new AND york"));
+        assertEquals("new york* [income TO tax]", phrase("new york* [income TO tax]"));
+        assertEquals("new\\ york income_tax", phrase("new\\ york income tax"));
+    }
+
+    public void testWhitespaceKeptOutsidePhrases() {
+        assertEquals("  new_york\tAND  income_tax ", phrase("  new   york\tAND  income tax "));
+    }
+
+    public void testCache() throws Exception {
+        NamedList<Object> args = new NamedList<>();
+        args.add("phrases", "phrases.txt");
+        args.add("cacheSize", 2);
+        AutoPhrasingQParserPlugin plugin = new AutoPhrasingQParserPlugin();
+        plugin.init(args);
+        MapResourceLoader loader = new MapResourceLoader();
+        loader.put("phrases.txt", "new york\n");
+        plugin.inform(loader);
+
+        String phrased = plugin.phrase("hotels in new york");
+        assertEquals("hotels in new_york", phrased);
+        assertSame(phrased, plugin.phrase("hotels in new york"));
+    }
+
+    public void testIncludeTokensIgnored() throws Exception {
+        NamedList<Object> args = new NamedList<>();
+        args.add("phrases", "phrases.txt");
+        args.add("includeTokens", "true");
+        AutoPhrasingQParserPlugin plugin = new AutoPhrasingQParserPlugin();
+        plugin.init(args);
+        MapResourceLoader loader = new MapResourceLoader();
+        loader.put("phrases.txt", "new york\nincome tax\n");
+        plugin.inform(loader);
+
+        assertEquals("hotels in new_york", plugin.phrase("hotels in new york"));
+        assertEquals("+income_tax -new_york", plugin.phrase("+income tax -new york"));
+    }
+}
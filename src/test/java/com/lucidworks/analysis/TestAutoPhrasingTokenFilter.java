@@ -2,9 +2,16 @@ package com.lucidworks.analysis;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.BaseTokenStreamTestCase;
 import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
 
 import java.util.Arrays;
 import org.apache.lucene.analysis.TokenStream;
@@ -53,6 +60,14 @@ public class TestAutoPhrasingTokenFilter extends BaseTokenStreamTestCase {
         
         try {
             BaseTokenStreamTestCase.assertAnalyzesTo(a, input, output, startOffsets, endOffsets, types, posIncrements, posLengths);
+
+            // streaming mode must produce exactly the same tokens
+            AutoPhrasingAnalyzer ap = (AutoPhrasingAnalyzer) a;
+            AutoPhrasingAnalyzer streaming = ap.getPhraseDictionary() != null
+                    ? new AutoPhrasingAnalyzer(ap.getPhraseDictionary(), ap.getReplaceWhitespaceWith())
+                    : new AutoPhrasingAnalyzer(ap.getPhraseSets(), ap.getReplaceWhitespaceWith());
+            streaming.setStreaming(true);
+            BaseTokenStreamTestCase.assertAnalyzesTo(streaming, input, output, startOffsets, endOffsets, types, posIncrements, posLengths);
         } catch (AssertionError e) {
             a.close();
             // Create a second instance of the Analyzer, analyzers tokenStreams cannot be reused.
@@ -719,4 +734,359 @@ public class TestAutoPhrasingTokenFilter extends BaseTokenStreamTestCase {
                 new int[] {1});
     }
 
+
+    public void testAbandonedPhraseFallsBackToSuffixPhrase() throws Exception {
+        final CharArraySet phrases = getPhraseSets("a b c d", "b c");
+        final String input = "a b c e";
+        Analyzer analyzer = new AutoPhrasingAnalyzer(phrases, ' ');
+        assertAnalyzesTo(analyzer, input,
+                new String[] {"a", "b c", "e"},
+                new int[] {0, 2, 6},
+                new int[] {1, 5, 7},
+                new int[] {1, 1, 1});
+    }
+
+    public void testLiteralAndWildcardPhrasesPickLongest() throws Exception {
+        final CharArraySet phrases = getPhraseSets("pay bill", "pay TOKEN? bill now", "bill now");
+        final String input = "pay bill now pay my bill now";
+        Analyzer analyzer = new AutoPhrasingAnalyzer(phrases, '_');
+        assertAnalyzesTo(analyzer, input,
+                new String[] {"pay_bill_now", "pay_bill_now"},
+                new int[] {0, 13},
+                new int[] {12, 28},
+                new int[] {1, 1});
+    }
+
+    public void testFuzzyMatchingThreeWildcards() throws Exception {
+        final CharArraySet phrases = getPhraseSets("pay TOKEN? TOKEN? TOKEN? bill");
+        final String input = "pay my own big bill pay bill";
+        Analyzer analyzer = new AutoPhrasingAnalyzer(phrases, '_');
+        assertAnalyzesTo(analyzer, input,
+                new String[] {"pay_bill", "pay_bill"},
+                new int[] {0, 20},
+                new int[] {19, 28},
+                new int[] {1, 1});
+    }
+
+    public void testFuzzyMatchingManyWildcardsIsNotExponential() throws Exception {
+        final int wildcards = 30;
+        final long timeLimitMillis = 5000;
+
+        StringBuilder phrase = new StringBuilder("pay");
+        for (int i = 0; i < wildcards; i++) {
+            phrase.append(' ').append(AutoPhrasingTokenFilter.WILDCARD_TOKEN);
+        }
+        phrase.append(" bill");
+        final CharArraySet phrases = getPhraseSets(phrase.toString(), "pay TOKEN? TOKEN? final");
+
+        // every "pay" starts an attempt that can never complete, the recursive matcher explored
+        // 2^30 combinations of the wildcards for each of them.
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            input.append(i % 20 == 0 ? "pay " : "a ");
+        }
+        input.append("pay a final");
+
+        Analyzer analyzer = new AutoPhrasingAnalyzer(phrases, '_');
+        long started = System.nanoTime();
+        TokenStream stream = analyzer.tokenStream("", input.toString());
+        stream.reset();
+        int tokens = 0;
+        while (stream.incrementToken()) {
+            tokens++;
+        }
+        stream.end();
+        stream.close();
+        long elapsedMillis = (System.nanoTime() - started) / 1000000;
+
+        assertEquals(2001, tokens);
+        assertTrue("matching took " + elapsedMillis + "ms", elapsedMillis < timeLimitMillis);
+    }
+
+    public void testStreamingBuffersBoundedWindow() throws Exception {
+        final CharArraySet phrases = getPhraseSets("wheel chair", "corn TOKEN? TOKEN? bread", "a b c d e");
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            input.append("some wheel chair and corn on my bread a b c d e f ");
+        }
+
+        WhitespaceTokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(input.toString()));
+        AutoPhrasingTokenFilter filter = new AutoPhrasingTokenFilter(tokenizer, phrases);
+        filter.setReplaceWhitespaceWith('_');
+        filter.setStreaming(true);
+        CharTermAttribute term = filter.addAttribute(CharTermAttribute.class);
+
+        filter.reset();
+        int tokens = 0;
+        int phraseTokens = 0;
+        while (filter.incrementToken()) {
+            tokens++;
+            if (term.toString().indexOf('_') > 0) {
+                phraseTokens++;
+            }
+        }
+        filter.end();
+        filter.close();
+
+        assertEquals(20000 * 6, tokens);
+        assertEquals(20000 * 3, phraseTokens);
+        assertTrue("buffered " + filter.getBufferHighWaterMark() + " tokens", filter.getBufferHighWaterMark() < 100);
+    }
+
+    /**
+     * A token of a canned token graph.
+     */
+    static final class GraphToken {
+        final String term;
+        final int start;
+        final int end;
+        final int posInc;
+        final int posLen;
+
+        GraphToken(String term, int start, int end, int posInc, int posLen) {
+            this.term = term;
+            this.start = start;
+            this.end = end;
+            this.posInc = posInc;
+            this.posLen = posLen;
+        }
+    }
+
+    /**
+     * Emits canned tokens, setting their attributes one by one.
+     */
+    static final class GraphTokenStream extends TokenStream {
+        private final CharTermAttribute term = addAttribute(CharTermAttribute.class);
+        private final OffsetAttribute offset = addAttribute(OffsetAttribute.class);
+        private final PositionIncrementAttribute posInc = addAttribute(PositionIncrementAttribute.class);
+        private final PositionLengthAttribute posLen = addAttribute(PositionLengthAttribute.class);
+        private final GraphToken[] tokens;
+        private int next;
+
+        GraphTokenStream(GraphToken... tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (next == tokens.length) {
+                return false;
+            }
+            GraphToken token = tokens[next++];
+            clearAttributes();
+            term.setEmpty().append(token.term);
+            offset.setOffset(token.start, token.end);
+            posInc.setPositionIncrement(token.posInc);
+            posLen.setPositionLength(token.posLen);
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            next = 0;
+        }
+    }
+
+    static GraphToken token(String term, int start, int end, int posInc, int posLen) {
+        return new GraphToken(term, start, end, posInc, posLen);
+    }
+
+    /**
+     * Filter a token graph, in both buffering modes, rendering each output token as
+     * term/posInc/posLen/startOffset-endOffset.
+     */
+    static List<String> analyzeGraph(PhraseDictionary dictionary, GraphToken... input) throws IOException {
+        List<String> output = null;
+        for (boolean streaming : new boolean[] {false, true}) {
+            AutoPhrasingTokenFilter filter = new AutoPhrasingTokenFilter(new GraphTokenStream(input), dictionary);
+            filter.setReplaceWhitespaceWith('_');
+            filter.setStreaming(streaming);
+            CharTermAttribute term = filter.addAttribute(CharTermAttribute.class);
+            PositionIncrementAttribute posInc = filter.addAttribute(PositionIncrementAttribute.class);
+            PositionLengthAttribute posLen = filter.addAttribute(PositionLengthAttribute.class);
+            OffsetAttribute offset = filter.addAttribute(OffsetAttribute.class);
+
+            List<String> tokens = new ArrayList<>();
+            filter.reset();
+            while (filter.incrementToken()) {
+                tokens.add(term + "/" + posInc.getPositionIncrement() + "/" + posLen.getPositionLength()
+                        + "/" + offset.startOffset() + "-" + offset.endOffset());
+            }
+            filter.end();
+            filter.close();
+
+            if (output != null) {
+                assertEquals("streaming output differs", output, tokens);
+            }
+            output = tokens;
+        }
+        return output;
+    }
+
+    public void testStackedTokenStartsPhrase() throws Exception {
+        PhraseTrie phrases = new PhraseTrie(getPhraseSets("large apple"), '_');
+        assertEquals(Arrays.asList("big/1/1/0-3", "large_apple/0/1/0-9"), analyzeGraph(phrases,
+                token("big", 0, 3, 1, 1), token("large", 0, 3, 0, 1), token("apple", 4, 9, 1, 1)));
+    }
+
+    public void testPhraseGoesThroughStackedToken() throws Exception {
+        PhraseTrie phrases = new PhraseTrie(getPhraseSets("big apple", "large apple", "apple pie"), '_');
+        // apple is consumed by the first phrase, large is emitted stacked on it
+        assertEquals(Arrays.asList("big_apple/1/1/0-9", "large/0/1/0-3", "pie/1/1/10-13"), analyzeGraph(phrases,
+                token("big", 0, 3, 1, 1), token("large", 0, 3, 0, 1), token("apple", 4, 9, 1, 1),
+                token("pie", 10, 13, 1, 1)));
+        assertEquals(Arrays.asList("apple_pie/1/1/4-13", "fruit/0/1/4-9"), analyzeGraph(phrases,
+                token("apple", 4, 9, 1, 1), token("fruit", 4, 9, 0, 1), token("pie", 10, 13, 1, 1)));
+    }
+
+    public void testMultiPositionToken() throws Exception {
+        PhraseTrie phrases = new PhraseTrie(getPhraseSets("new york", "ny city", "pay TOKEN? bill"), '_');
+        // ny spans new york, so it is followed by city
+        assertEquals(Arrays.asList("new_york/1/1/0-8", "ny_city/0/1/0-13"), analyzeGraph(phrases,
+                token("new", 0, 3, 1, 1), token("ny", 0, 8, 0, 2), token("york", 4, 8, 1, 1),
+                token("city", 9, 13, 1, 1)));
+        // position lengths of tokens that are not part of a phrase are kept
+        assertEquals(Arrays.asList("ny/1/2/0-8", "new_york/0/1/0-8"), analyzeGraph(phrases,
+                token("ny", 0, 8, 1, 2), token("new", 0, 3, 0, 1), token("york", 4, 8, 1, 1)));
+        // the wildcard consumes a token of the graph too
+        assertEquals(Arrays.asList("pay_bill/1/1/0-17", "your/0/1/4-8"), analyzeGraph(phrases,
+                token("pay", 0, 3, 1, 1), token("my", 4, 6, 1, 1), token("your", 4, 8, 0, 1),
+                token("bill", 13, 17, 1, 1)));
+    }
+
+    public void testIncludeTokens() throws Exception {
+        final CharArraySet phrases = getPhraseSets("wheel chair", "chair alarm", "pay TOKEN? bill");
+        for (boolean streaming : new boolean[] {false, true}) {
+            AutoPhrasingAnalyzer analyzer = new AutoPhrasingAnalyzer(phrases, '_');
+            analyzer.setIncludeTokens(true);
+            analyzer.setStreaming(streaming);
+
+            BaseTokenStreamTestCase.assertAnalyzesTo(analyzer, "the wheel chair alarm",
+                    new String[] {"the", "wheel_chair", "wheel", "chair_alarm", "chair", "alarm"},
+                    new int[] {0, 4, 4, 10, 10, 16},
+                    new int[] {3, 15, 9, 21, 15, 21},
+                    null,
+                    new int[] {1, 1, 0, 1, 0, 1},
+                    new int[] {1, 2, 1, 2, 1, 1});
+            BaseTokenStreamTestCase.assertAnalyzesTo(analyzer, "pay my bill",
+                    new String[] {"pay_bill", "pay", "my", "bill"},
+                    new int[] {0, 0, 4, 7},
+                    new int[] {11, 3, 6, 11},
+                    null,
+                    new int[] {1, 0, 1, 1},
+                    new int[] {3, 1, 1, 1});
+            analyzer.close();
+        }
+    }
+
+    public void testIncludeTokensGraph() throws Exception {
+        PhraseTrie phrases = new PhraseTrie(getPhraseSets("ny city"), '_');
+        AutoPhrasingTokenFilter filter = new AutoPhrasingTokenFilter(new GraphTokenStream(
+                token("new", 0, 3, 1, 1), token("ny", 0, 8, 0, 2), token("york", 4, 8, 1, 1),
+                token("city", 9, 13, 1, 1)), phrases);
+        filter.setReplaceWhitespaceWith('_');
+        filter.setIncludeTokens(true);
+        // the phrase spans the two positions of ny and the one of city
+        assertTokenStreamContents(filter,
+                new String[] {"new", "ny_city", "ny", "york", "city"},
+                new int[] {0, 0, 0, 4, 9},
+                new int[] {3, 13, 8, 8, 13},
+                new int[] {1, 0, 0, 1, 1},
+                new int[] {1, 3, 2, 1, 1},
+                null);
+    }
+
+    public void testIgnoreCase() throws Exception {
+        final CharArraySet phrases = getPhraseSets("wheel chair", "pay TOKEN? bill");
+
+        Analyzer caseSensitive = new AutoPhrasingAnalyzer(phrases, '_');
+        assertAnalyzesTo(caseSensitive, "Wheel CHAIR",
+                new String[] {"Wheel", "CHAIR"});
+
+        Analyzer analyzer = new AutoPhrasingAnalyzer(new PhraseTrie(phrases, '_', true), '_');
+        // the phrase is emitted as defined, other tokens keep their case
+        assertAnalyzesTo(analyzer, "My Wheel CHAIR to Pay My Bill",
+                new String[] {"My", "wheel_chair", "to", "pay_bill"},
+                new int[] {0, 3, 15, 18},
+                new int[] {2, 14, 17, 29},
+                new int[] {1, 1, 1, 1});
+    }
+
+    /**
+     * Analyze the documents with one filter, rendering each output token as
+     * term/posInc/posLen/startOffset-endOffset.
+     */
+    private static List<String> analyzeDocuments(PhraseDictionary dictionary, boolean includeTokens,
+                                                 PhraseOutputCache cache, String... documents) throws IOException {
+        WhitespaceTokenizer tokenizer = new WhitespaceTokenizer();
+        AutoPhrasingTokenFilter filter = new AutoPhrasingTokenFilter(tokenizer, dictionary);
+        filter.setReplaceWhitespaceWith('_');
+        filter.setIncludeTokens(includeTokens);
+        filter.setOutputCache(cache);
+        CharTermAttribute term = filter.addAttribute(CharTermAttribute.class);
+        PositionIncrementAttribute posInc = filter.addAttribute(PositionIncrementAttribute.class);
+        PositionLengthAttribute posLen = filter.addAttribute(PositionLengthAttribute.class);
+        OffsetAttribute offset = filter.addAttribute(OffsetAttribute.class);
+
+        List<String> tokens = new ArrayList<>();
+        for (String document : documents) {
+            tokenizer.setReader(new StringReader(document));
+            filter.reset();
+            while (filter.incrementToken()) {
+                tokens.add(term + "/" + posInc.getPositionIncrement() + "/" + posLen.getPositionLength()
+                        + "/" + offset.startOffset() + "-" + offset.endOffset());
+            }
+            filter.end();
+            filter.close();
+        }
+        return tokens;
+    }
+
+    public void testOutputCache() throws Exception {
+        // the same tokens at other offsets, and a value too long to be cached
+        String longValue = String.join(" ", java.util.Collections.nCopies(PhraseOutputCache.DEFAULT_MAX_TOKENS, "wheel chair"));
+        String[] documents = {"my wheel chair ramp", "pay my bill", "  my   wheel chair ramp", "pay my bill",
+                longValue, longValue, "pay the bill"};
+        for (boolean includeTokens : new boolean[] {false, true}) {
+            PhraseTrie phrases = new PhraseTrie(getPhraseSets("wheel chair", "wheel chair ramp", "pay TOKEN? bill"), '_');
+            PhraseOutputCache cache = new PhraseOutputCache(16, PhraseOutputCache.DEFAULT_MAX_TOKENS);
+            assertEquals(analyzeDocuments(phrases, includeTokens, null, documents),
+                    analyzeDocuments(phrases, includeTokens, cache, documents));
+            assertEquals(2, cache.getHits());
+            assertEquals(3, cache.getMisses());
+
+            // a replayed phrase is counted as a hit of the phrase too
+            phrases.enableHitCounts();
+            analyzeDocuments(phrases, includeTokens, cache, "pay my bill", "pay my bill");
+            assertEquals(4, cache.getHits());
+            long payBillHits = phrases.getHitCounts().getHits().stream()
+                    .filter(hit -> hit.getPhrase().equals("pay TOKEN? bill")).findFirst().get().getCount();
+            assertEquals(2, payBillHits);
+        }
+    }
+
+    public void testOutputCacheNewDictionary() throws Exception {
+        PhraseOutputCache cache = new PhraseOutputCache(16, PhraseOutputCache.DEFAULT_MAX_TOKENS);
+        assertEquals(Arrays.asList("wheel_chair/1/1/0-11"),
+                analyzeDocuments(new PhraseTrie(getPhraseSets("wheel chair"), '_'), false, cache, "wheel chair"));
+        // entries of another version of the dictionary are not replayed
+        assertEquals(Arrays.asList("wheel/1/1/0-5", "chair/1/1/6-11"),
+                analyzeDocuments(new PhraseTrie(getPhraseSets("new york"), '_'), false, cache, "wheel chair"));
+        assertEquals(0, cache.getHits());
+    }
+
+    public void testOutputCacheKeepsNewerDictionary() throws Exception {
+        PhraseOutputCache cache = new PhraseOutputCache(16, PhraseOutputCache.DEFAULT_MAX_TOKENS);
+        PhraseTrie replaced = new PhraseTrie(getPhraseSets("wheel chair"), '_');
+        // terms of its phrases, or the filter would pass the field through without the cache
+        PhraseTrie current = new PhraseTrie(getPhraseSets("wheel chair ramp"), '_');
+        analyzeDocuments(current, false, cache, "wheel chair");
+        // a stream still matching with the replaced dictionary does not empty the cache
+        analyzeDocuments(replaced, false, cache, "wheel chair");
+        assertEquals(Arrays.asList("wheel/1/1/0-5", "chair/1/1/6-11"),
+                analyzeDocuments(current, false, cache, "wheel chair"));
+        assertEquals(1, cache.getHits());
+    }
 }
@@ -0,0 +1,179 @@
+package com.lucidworks.analysis;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import java.io.FileNotFoundException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.util.Accountable;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.metrics.SolrMetricManager;
+
+public class TestAutoPhrasingTokenFilterFactory extends TestCase {
+
+    public void testLoadPhraseFiles() throws Exception {
+        MapResourceLoader loader = new MapResourceLoader();
+        loader.put("cars.txt", "# cars\nsports car\n\nwheel chair\n");
+        loader.putGzipped("food.txt.gz", "corn bread\ncorn dog\n");
+        loader.put("more, food.txt", "Corn Bread\n");
+
+        CharArraySet phrases = AutoPhrasingTokenFilterFactory.loadPhraseFiles(loader,
+                Arrays.asList("cars.txt", "food.txt.gz", "more, food.txt"), true);
+        assertEquals(4, phrases.size());
+        assertTrue(phrases.contains("sports car"));
+        assertTrue(phrases.contains("wheel chair"));
+        assertTrue(phrases.contains("corn dog"));
+        assertTrue(phrases.contains("corn bread"));
+        assertFalse(phrases.contains("# cars"));
+    }
+
+    public void testLoadPhraseFilesMissingFile() throws Exception {
+        MapResourceLoader loader = new MapResourceLoader();
+        loader.put("cars.txt", "sports car\n");
+        try {
+            AutoPhrasingTokenFilterFactory.loadPhraseFiles(loader, Arrays.asList("cars.txt", "missing.txt"), true);
+            fail("missing phrase file");
+        } catch (FileNotFoundException expected) {
+        }
+        assertNull(AutoPhrasingTokenFilterFactory.loadPhraseFiles(loader, Collections.<String>emptyList(), true));
+    }
+
+    public void testEscapedCommaInFileNames() throws Exception {
+        MapResourceLoader loader = new MapResourceLoader();
+        loader.put("cars.txt", "sports car\n");
+        loader.put("more, food.txt", "corn bread\n");
+        Map<String, String> args = new HashMap<>();
+        args.put("phrases", "cars.txt,more\\, food.txt");
+
+        AutoPhrasingTokenFilterFactory factory = new AutoPhrasingTokenFilterFactory(args);
+        factory.inform(loader);
+        assertEquals(2, factory.getPhraseDictionary().size());
+    }
+
+    public void testMetrics() throws Exception {
+        MapResourceLoader loader = new MapResourceLoader();
+        loader.put("phrases.txt", "wheel chair\npay TOKEN? bill\n");
+        Map<String, String> args = new HashMap<>();
+        args.put("phrases", "phrases.txt");
+        args.put("replaceWhitespaceWith", "_");
+        AutoPhrasingTokenFilterFactory factory = new AutoPhrasingTokenFilterFactory(args);
+        factory.inform(loader);
+
+        WhitespaceTokenizer tokenizer = new WhitespaceTokenizer();
+        TokenStream stream = factory.create(tokenizer);
+        for (String document : new String[]{"wheel chair ramp pay my bill", "no phrase here"}) {
+            tokenizer.setReader(new StringReader(document));
+            stream.reset();
+            while (stream.incrementToken()) {
+            }
+            stream.end();
+            stream.close();
+        }
+
+        AutoPhrasingMetrics metrics = factory.getMetrics();
+        assertEquals(9, metrics.getTokensIn());
+        assertEquals(6, metrics.getTokensOut());
+        assertEquals(2, metrics.getPhrasesEmitted());
+        assertTrue(metrics.getCandidates() > 0);
+        assertTrue(metrics.getWildcardExpansions() > 0);
+        assertEquals(6, metrics.getBufferHighWaterMark());
+        assertEquals(2, metrics.getDocuments().getCount());
+
+        SolrMetricManager manager = new SolrMetricManager();
+        factory.initializeMetrics(manager, "solr.core.test", "text");
+        // registering again, as after a core reload, replaces the metrics
+        factory.initializeMetrics(manager, "solr.core.test", "text");
+        MetricRegistry registry = manager.registry("solr.core.test");
+        assertEquals(9L, ((Gauge<?>) registry.getMetrics().get("ANALYSIS.autoPhrasing.text.tokensIn")).getValue());
+        assertSame(metrics.getDocuments(), registry.getMetrics().get("ANALYSIS.autoPhrasing.text.documents"));
+    }
+
+    public void testPhraseHits() throws Exception {
+        MapResourceLoader loader = new MapResourceLoader();
+        loader.put("phrases.txt", "wheel chair\nnew york\nsports car\n");
+        Map<String, String> args = new HashMap<>();
+        args.put("phrases", "phrases.txt");
+        args.put("countPhraseHits", "true");
+        AutoPhrasingTokenFilterFactory factory = new AutoPhrasingTokenFilterFactory(args);
+        factory.inform(loader);
+
+        WhitespaceTokenizer tokenizer = new WhitespaceTokenizer();
+        TokenStream stream = factory.create(tokenizer);
+        for (String document : new String[]{"wheel chair to new york", "new york new york"}) {
+            tokenizer.setReader(new StringReader(document));
+            stream.reset();
+            while (stream.incrementToken()) {
+            }
+            stream.end();
+            stream.close();
+        }
+
+        StringWriter export = new StringWriter();
+        factory.getPhraseDictionary().getHitCounts().write(export);
+        assertEquals("0\tsports car\n1\twheel chair\n3\tnew york\n", export.toString());
+    }
+
+    public void testPhraseHitsNotCounted() throws Exception {
+        MapResourceLoader loader = new MapResourceLoader();
+        loader.put("phrases.txt", "wheel chair\n");
+        AutoPhrasingTokenFilterFactory factory = new AutoPhrasingTokenFilterFactory(
+                new HashMap<>(Collections.singletonMap("phrases", "phrases.txt")));
+        factory.inform(loader);
+        assertNull(factory.getPhraseDictionary().getHitCounts());
+    }
+
+    public void testRamBytesUsed() throws Exception {
+        MapResourceLoader loader = new MapResourceLoader();
+        loader.put("phrases.txt", "wheel chair\nnew york\nsports car\n");
+        Map<String, String> args = new HashMap<>();
+        args.put("phrases", "phrases.txt");
+        args.put("outputCacheSize", "16");
+        AutoPhrasingTokenFilterFactory factory = new AutoPhrasingTokenFilterFactory(args);
+        factory.inform(loader);
+
+        PhraseDictionary dictionary = factory.getPhraseDictionary();
+        long cacheBytes = factory.getOutputCache().ramBytesUsed();
+        assertEquals(dictionary.ramBytesUsed() + cacheBytes, factory.ramBytesUsed());
+
+        WhitespaceTokenizer tokenizer = new WhitespaceTokenizer();
+        TokenStream stream = factory.create(tokenizer);
+        tokenizer.setReader(new StringReader("wheel chair to new york"));
+        stream.reset();
+        while (stream.incrementToken()) {
+        }
+        stream.end();
+        stream.close();
+        // the cached output of the field
+        assertTrue(factory.getOutputCache().ramBytesUsed() > cacheBytes);
+
+        Accountable[] children = factory.getChildResources().toArray(new Accountable[0]);
+        assertEquals(2, children.length);
+        assertEquals("dictionary", children[0].toString());
+        assertEquals(dictionary.ramBytesUsed(), children[0].ramBytesUsed());
+        assertEquals(dictionary.getChildResources().size(), children[0].getChildResources().size());
+        assertEquals("output cache", children[1].toString());
+
+        SolrMetricManager manager = new SolrMetricManager();
+        factory.initializeMetrics(manager, "solr.core.test", "text");
+        Map<String, Metric> registered = manager.registry("solr.core.test").getMetrics();
+        assertEquals(factory.ramBytesUsed(), ((Gauge<?>) registered.get("ANALYSIS.autoPhrasing.text.ramBytesUsed")).getValue());
+        assertEquals(dictionary.ramBytesUsed(), ((Gauge<?>) registered.get("ANALYSIS.autoPhrasing.text.dictionaryRamBytesUsed")).getValue());
+        assertEquals(factory.getOutputCache().ramBytesUsed(),
+                ((Gauge<?>) registered.get("ANALYSIS.autoPhrasing.text.outputCacheRamBytesUsed")).getValue());
+
+        NamedList<Object> usage = AutoPhrasingMetricsComponent.ramUsage(factory);
+        assertEquals(factory.ramBytesUsed(), usage.get("ramBytesUsed"));
+        NamedList<?> dictionaryUsage = (NamedList<?>) usage.get("dictionary");
+        assertEquals(dictionary.ramBytesUsed(), dictionaryUsage.get("ramBytesUsed"));
+        assertNotNull(dictionaryUsage.get("nodes"));
+    }
+}
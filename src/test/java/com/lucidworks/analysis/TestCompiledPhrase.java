@@ -0,0 +1,64 @@
+package com.lucidworks.analysis;
+
+import junit.framework.TestCase;
+
+public class TestCompiledPhrase extends TestCase {
+
+    public void testEmptyPhrase() throws Exception {
+        assertNull(CompiledPhrase.compile("".toCharArray()));
+        assertNull(CompiledPhrase.compile("  ".toCharArray()));
+    }
+
+    public void testLiteralPhrase() throws Exception {
+        CompiledPhrase phrase = CompiledPhrase.compile("wheel chair".toCharArray());
+        assertEquals(2, phrase.length());
+        assertEquals(2, phrase.getMinTokens());
+        assertEquals("wheel", new String(phrase.getTerm(0)));
+        assertEquals("chair", new String(phrase.getTerm(1)));
+        assertFalse(phrase.isWildcard(0));
+        assertFalse(phrase.isWildcard(1));
+        assertEquals("wheel chair", new String(phrase.getOutput()));
+    }
+
+    public void testRepeatedWhitespace() throws Exception {
+        CompiledPhrase phrase = CompiledPhrase.compile(" wheel \t chair ".toCharArray());
+        assertEquals(2, phrase.length());
+        assertEquals("wheel chair", new String(phrase.getOutput()));
+        assertEquals("wheel chair", phrase.toString());
+    }
+
+    public void testWildcards() throws Exception {
+        CompiledPhrase phrase = CompiledPhrase.compile("pay TOKEN? token? bill".toCharArray());
+        assertEquals(4, phrase.length());
+        assertEquals(2, phrase.getMinTokens());
+        assertFalse(phrase.isWildcard(0));
+        assertTrue(phrase.isWildcard(1));
+        assertTrue(phrase.isWildcard(2));
+        assertFalse(phrase.isWildcard(3));
+        assertEquals("pay bill", new String(phrase.getOutput()));
+        assertEquals("pay TOKEN? token? bill", phrase.toString());
+    }
+
+    public void testSurfaceForm() throws Exception {
+        CompiledPhrase phrase = CompiledPhrase.compile("pay TOKEN? my bill".toCharArray(), '_');
+        assertEquals("pay my bill", new String(phrase.getOutput()));
+        assertEquals("pay_my_bill", new String(phrase.getSurfaceForm()));
+
+        phrase = CompiledPhrase.compile("pay TOKEN? my bill".toCharArray(), null);
+        assertEquals("paymybill", new String(phrase.getSurfaceForm()));
+
+        phrase = CompiledPhrase.compile("pay TOKEN? my bill".toCharArray());
+        assertSame(phrase.getOutput(), phrase.getSurfaceForm());
+    }
+
+    public void testTrailingWildcardStripped() throws Exception {
+        CompiledPhrase phrase = CompiledPhrase.compile("pay TOKEN?".toCharArray());
+        assertEquals("pay", new String(phrase.getOutput()));
+    }
+
+    public void testWildcardLookalikes() throws Exception {
+        CompiledPhrase phrase = CompiledPhrase.compile("tokens TOKEN TOKEN?? xTOKEN?".toCharArray());
+        assertEquals(4, phrase.getMinTokens());
+        assertEquals("tokens TOKEN TOKEN?? xTOKEN?", new String(phrase.getOutput()));
+    }
+}
@@ -0,0 +1,316 @@
+package com.lucidworks.analysis;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.BaseTokenStreamTestCase;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.RamUsageTester;
+
+public class TestFSTPhraseDictionary extends BaseTokenStreamTestCase {
+
+    private static CharArraySet getPhraseSets(String... phrases) {
+        return new CharArraySet(Arrays.asList(phrases), false);
+    }
+
+    /**
+     * Tokens spans only, phrases of the same span may differ in which wildcard they used.
+     */
+    private static List<String> analyzeSpans(Analyzer analyzer, String input) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream("", new StringReader(input))) {
+            OffsetAttribute offset = stream.addAttribute(OffsetAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add(offset.startOffset() + "-" + offset.endOffset());
+            }
+            stream.end();
+        }
+        return tokens;
+    }
+
+    public void testEmptyDictionary() throws Exception {
+        FSTPhraseDictionary dictionary = new FSTPhraseDictionary(getPhraseSets());
+        assertEquals(0, dictionary.size());
+        // no FST, only the dictionary itself and its (empty) vocabulary filter
+        assertEquals(RamUsageEstimator.shallowSizeOfInstance(FSTPhraseDictionary.class)
+                + dictionary.getVocabularyFilter().ramBytesUsed(), dictionary.ramBytesUsed());
+        assertEquals(1, dictionary.getChildResources().size());
+
+        Analyzer analyzer = new AutoPhrasingAnalyzer(dictionary, '_');
+        assertAnalyzesTo(analyzer, "wheel chair",
+                new String[] {"wheel", "chair"});
+    }
+
+    public void testDuplicatePhrasesAreMerged() throws Exception {
+        FSTPhraseDictionary dictionary = new FSTPhraseDictionary(getPhraseSets("wheel chair", "wheel  chair"));
+        assertEquals(1, dictionary.size());
+        assertEquals(2, dictionary.getMaxPhraseLength());
+    }
+
+    public void testLongestPhrase() throws Exception {
+        FSTPhraseDictionary dictionary = new FSTPhraseDictionary(
+                getPhraseSets("corn bread", "corn bread dressing", "wheel chair", "chair alarm"));
+        Analyzer analyzer = new AutoPhrasingAnalyzer(dictionary, '_');
+        assertAnalyzesTo(analyzer, "corn bread dressing with wheel chair alarm",
+                new String[] {"corn_bread_dressing", "with", "wheel_chair", "alarm"},
+                new int[] {0, 20, 25, 37},
+                new int[] {19, 24, 36, 42},
+                new int[] {1, 1, 1, 1});
+    }
+
+    public void testWildcards() throws Exception {
+        FSTPhraseDictionary dictionary = new FSTPhraseDictionary(
+                getPhraseSets("corn TOKEN? TOKEN? bread", "pay TOKEN? bill"));
+        Analyzer analyzer = new AutoPhrasingAnalyzer(dictionary, ' ');
+        assertAnalyzesTo(analyzer, "corn on my bread pay bill",
+                new String[] {"corn bread", "pay bill"},
+                new int[] {0, 17},
+                new int[] {16, 25},
+                new int[] {1, 1});
+    }
+
+    public void testSameOutputAsTrie() throws Exception {
+        Random random = random();
+        String[] vocabulary = {"new", "york", "city", "san", "jose", "francisco", "the", "TOKEN?"};
+        List<String> phrases = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            StringBuilder phrase = new StringBuilder(vocabulary[random.nextInt(vocabulary.length - 1)]);
+            int length = 1 + random.nextInt(4);
+            for (int j = 0; j < length; j++) {
+                phrase.append(' ').append(vocabulary[random.nextInt(vocabulary.length)]);
+            }
+            phrases.add(phrase.toString());
+        }
+        CharArraySet phraseSet = new CharArraySet(phrases, false);
+
+        Analyzer trie = new AutoPhrasingAnalyzer(new PhraseTrie(phraseSet), '_');
+        Analyzer fst = new AutoPhrasingAnalyzer(new FSTPhraseDictionary(phraseSet), '_');
+        for (int i = 0; i < 50; i++) {
+            StringBuilder input = new StringBuilder();
+            for (int j = 0; j < 30; j++) {
+                input.append(vocabulary[random.nextInt(vocabulary.length - 1)]).append(' ');
+            }
+            assertEquals(analyzeSpans(trie, input.toString()), analyzeSpans(fst, input.toString()));
+        }
+    }
+
+    public void testHeapUsageVersusTrie() throws Exception {
+        List<String> phrases = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            phrases.add("product " + (i % 100) + " model " + i + " series");
+        }
+        CharArraySet phraseSet = new CharArraySet(phrases, false);
+
+        long setBytes = RamUsageTester.sizeOf(phraseSet);
+        long trieBytes = RamUsageTester.sizeOf(new PhraseTrie(phraseSet));
+        long fstBytes = new FSTPhraseDictionary(phraseSet).ramBytesUsed();
+        // the trie is the larger of the two dictionaries by design, the FST has to undercut the
+        // set of phrases it was built from
+        assertTrue("FST " + fstBytes + " bytes, CharArraySet " + setBytes + " bytes", fstBytes < setBytes);
+        assertTrue("FST " + fstBytes + " bytes, PhraseTrie " + trieBytes + " bytes", fstBytes < trieBytes);
+    }
+
+    public void testManyWildcardsIsNotExponential() throws Exception {
+        final long timeLimitMillis = 5000;
+        StringBuilder phrase = new StringBuilder("pay");
+        for (int i = 0; i < 30; i++) {
+            phrase.append(" TOKEN?");
+        }
+        phrase.append(" bill");
+        FSTPhraseDictionary dictionary = new FSTPhraseDictionary(getPhraseSets(phrase.toString()));
+
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            input.append(i % 40 == 0 ? "pay " : "a ");
+        }
+        input.append("pay a bill");
+
+        long started = System.nanoTime();
+        List<String> spans = analyzeSpans(new AutoPhrasingAnalyzer(dictionary, '_'), input.toString());
+        long elapsedMillis = (System.nanoTime() - started) / 1000000;
+
+        assertEquals(2001, spans.size());
+        assertTrue("matching took " + elapsedMillis + "ms", elapsedMillis < timeLimitMillis);
+    }
+
+    public void testTokenGraph() throws Exception {
+        FSTPhraseDictionary dictionary = new FSTPhraseDictionary(
+                getPhraseSets("big apple", "large apple", "ny city", "pay TOKEN? bill"), '_');
+        assertEquals(Arrays.asList("big_apple/1/1/0-9", "large/0/1/0-3"),
+                TestAutoPhrasingTokenFilter.analyzeGraph(dictionary,
+                        TestAutoPhrasingTokenFilter.token("big", 0, 3, 1, 1),
+                        TestAutoPhrasingTokenFilter.token("large", 0, 3, 0, 1),
+                        TestAutoPhrasingTokenFilter.token("apple", 4, 9, 1, 1)));
+        assertEquals(Arrays.asList("new/1/1/0-3", "ny_city/0/1/0-13", "york/1/1/4-8"),
+                TestAutoPhrasingTokenFilter.analyzeGraph(dictionary,
+                        TestAutoPhrasingTokenFilter.token("new", 0, 3, 1, 1),
+                        TestAutoPhrasingTokenFilter.token("ny", 0, 8, 0, 2),
+                        TestAutoPhrasingTokenFilter.token("york", 4, 8, 1, 1),
+                        TestAutoPhrasingTokenFilter.token("city", 9, 13, 1, 1)));
+        assertEquals(Arrays.asList("pay_bill/1/1/0-17", "your/0/1/4-8"),
+                TestAutoPhrasingTokenFilter.analyzeGraph(dictionary,
+                        TestAutoPhrasingTokenFilter.token("pay", 0, 3, 1, 1),
+                        TestAutoPhrasingTokenFilter.token("my", 4, 6, 1, 1),
+                        TestAutoPhrasingTokenFilter.token("your", 4, 8, 0, 1),
+                        TestAutoPhrasingTokenFilter.token("bill", 13, 17, 1, 1)));
+    }
+
+    public void testIgnoreCase() throws Exception {
+        FSTPhraseDictionary dictionary = new FSTPhraseDictionary(
+                getPhraseSets("Wheel chair", "pay TOKEN? bill"), '_', true);
+        Analyzer analyzer = new AutoPhrasingAnalyzer(dictionary, '_');
+        // the fst holds folded terms, so phrases are emitted lower cased
+        assertAnalyzesTo(analyzer, "My Wheel CHAIR to Pay My Bill",
+                new String[] {"My", "wheel_chair", "to", "pay_bill"},
+                new int[] {0, 3, 15, 18},
+                new int[] {2, 14, 17, 29});
+    }
+
+    public void testIgnoreCaseFoldsCodePoints() throws Exception {
+        // DESERET CAPITAL LETTER LONG I and its small letter are both surrogate pairs
+        FSTPhraseDictionary dictionary = new FSTPhraseDictionary(getPhraseSets("\uD801\uDC00b chair"), '_', true);
+        assertAnalyzesTo(new AutoPhrasingAnalyzer(dictionary, '_'), "\uD801\uDC00B CHAIR \uD801\uDC28b chair",
+                new String[] {"\uD801\uDC28b_chair", "\uD801\uDC28b_chair"});
+    }
+
+    public void testSaveAndOpen() throws Exception {
+        FSTPhraseDictionary dictionary = new FSTPhraseDictionary(
+                getPhraseSets("wheel chair", "pay TOKEN? bill", "corn bread dressing"), '_', true);
+        Path file = createTempDir().resolve("phrases.fst");
+        dictionary.save(file);
+
+        FSTPhraseDictionary opened = FSTPhraseDictionary.open(file);
+        assertEquals(dictionary.size(), opened.size());
+        assertEquals(dictionary.getMaxPhraseLength(), opened.getMaxPhraseLength());
+        assertEquals(Character.valueOf('_'), opened.getReplaceWhitespaceWith());
+        assertTrue(opened.isIgnoreCase());
+
+        char[] chair = "CHAIR".toCharArray();
+        assertNotNull(opened.getVocabularyFilter());
+        assertTrue(opened.mightContainTerm(chair, 0, chair.length));
+
+        Analyzer analyzer = new AutoPhrasingAnalyzer(opened, '_');
+        assertAnalyzesTo(analyzer, "Wheel Chair to pay my bill",
+                new String[] {"wheel_chair", "to", "pay_bill"});
+
+        // saving again replaces the file
+        new FSTPhraseDictionary(getPhraseSets(), null).save(file);
+        FSTPhraseDictionary empty = FSTPhraseDictionary.open(file);
+        assertEquals(0, empty.size());
+        assertNull(empty.getReplaceWhitespaceWith());
+    }
+
+    public void testDocumentWithoutPhraseTermsIsNotMatched() throws Exception {
+        FSTPhraseDictionary dictionary = new FSTPhraseDictionary(getPhraseSets("wheel chair", "pay TOKEN? bill"), '_');
+        PhraseMatcher matcher = dictionary.newMatcher();
+        TokenBuffer tokens = new TokenBuffer();
+        for (String term : new String[]{"the", "quick", "fox"}) {
+            tokens.add(term.toCharArray(), term.length(), 0, 0, 1);
+            matcher.tokenAdded(tokens);
+        }
+        assertFalse(matcher.mayMatch());
+        assertFalse(matcher.canStartPhrase(tokens, 0));
+        assertEquals(0, matcher.longestMatch(tokens, 0));
+        tokens.add("chair".toCharArray(), 5, 0, 0, 1);
+        matcher.tokenAdded(tokens);
+        assertTrue(matcher.mayMatch());
+
+        // a phrase of wildcards only can match any document
+        assertNull(new FSTPhraseDictionary(getPhraseSets("TOKEN?"), '_').getVocabularyFilter());
+    }
+
+    public void testVocabularyFilterSizedByDistinctTerms() throws Exception {
+        List<String> phrases = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            phrases.add("product " + i + " model TOKEN?");
+        }
+        CharArraySet phraseSet = new CharArraySet(phrases, false);
+        FSTPhraseDictionary dictionary = new FSTPhraseDictionary(phraseSet, '_');
+        // product, model and the 1000 numbers, not the 4000 terms of the phrases
+        assertEquals(new VocabularyFilter(1002, false).bitCount(), dictionary.getVocabularyFilter().bitCount());
+        assertEquals(new PhraseTrie(phraseSet, '_').getVocabularyFilter().bitCount(),
+                dictionary.getVocabularyFilter().bitCount());
+
+        // more tokens than the matcher first has room for
+        PhraseMatcher matcher = dictionary.newMatcher();
+        TokenBuffer tokens = new TokenBuffer();
+        for (int i = 0; i < 100; i++) {
+            tokens.add("fox".toCharArray(), 3, 0, 0, 1);
+            matcher.tokenAdded(tokens);
+        }
+        assertFalse(matcher.mayMatch());
+        tokens.add("model".toCharArray(), 5, 0, 0, 1);
+        matcher.tokenAdded(tokens);
+        assertTrue(matcher.mayMatch());
+    }
+
+    public void testOpenRejectsOtherFiles() throws Exception {
+        Path file = createTempDir().resolve("phrases.txt");
+        Files.write(file, "wheel chair\n".getBytes(StandardCharsets.UTF_8));
+        try {
+            FSTPhraseDictionary.open(file);
+            fail("a text file is not a compiled dictionary");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testCompilerReadsPhraseFilesLikeTheFactory() throws Exception {
+        Path dir = createTempDir();
+        Files.write(dir.resolve("phrases.txt"),
+                "# comment\nWheel Chair\npay TOKEN? bill\n".getBytes(StandardCharsets.UTF_8));
+        Map<String, String> params = new HashMap<>();
+        params.put("phrases", "phrases.txt");
+        params.put("replaceWhitespaceWith", "_");
+
+        FSTPhraseDictionary dictionary = PhraseDictionaryCompiler.compile(params, dir);
+        assertEquals(2, dictionary.size());
+        assertTrue(dictionary.isIgnoreCase());
+    }
+
+    public void testParallelBuildMatchesSerialBuild() throws Exception {
+        Random random = new Random(42);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CharArraySet phrases = TestPhraseTrie.randomPhrases(random, 5000);
+            FSTPhraseDictionary serial = new FSTPhraseDictionary(phrases, '_', false);
+            FSTPhraseDictionary parallel = new FSTPhraseDictionary(phrases, '_', false, pool);
+            assertEquals(serial.size(), parallel.size());
+            assertEquals(serial.getMaxPhraseLength(), parallel.getMaxPhraseLength());
+            assertEquals(serial.ramBytesUsed(), parallel.ramBytesUsed());
+
+            // the same phrases with the same ordinals, in the same order
+            assertEquals(TestPhraseTrie.phrasesWithOrdinals(serial), TestPhraseTrie.phrasesWithOrdinals(parallel));
+            // and the same FST, arcs, labels and ordinal outputs included
+            Path dir = createTempDir();
+            serial.save(dir.resolve("serial.fst"));
+            parallel.save(dir.resolve("parallel.fst"));
+            assertTrue(Arrays.equals(Files.readAllBytes(dir.resolve("serial.fst")),
+                    Files.readAllBytes(dir.resolve("parallel.fst"))));
+
+            // every phrase has the same ordinal, so the same phrase is rebuilt from either
+            StringBuilder input = new StringBuilder();
+            for (int i = 0; i < 2000; i++) {
+                input.append('w').append(random.nextInt(60)).append(' ');
+            }
+            String text = input.toString();
+            assertEquals(analyzeSpans(new AutoPhrasingAnalyzer(serial, '_'), text),
+                    analyzeSpans(new AutoPhrasingAnalyzer(parallel, '_'), text));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.lucidworks.analysis;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+
+public class TestPhraseDictionaryReloader extends TestCase {
+
+    /**
+     * Phrases that can be changed or only touched between reloads, the stamp and fingerprint
+     * being version numbers.
+     */
+    private static class MutableSource implements PhraseDictionaryReloader.Source {
+        volatile String[] phrases;
+        volatile long stamp = 0;
+        volatile long version = 0;
+        volatile boolean fail = false;
+        final AtomicInteger stamps = new AtomicInteger();
+        final AtomicInteger fingerprints = new AtomicInteger();
+
+        MutableSource(String... phrases) {
+            this.phrases = phrases;
+        }
+
+        void update(String... phrases) {
+            this.phrases = phrases;
+            version++;
+            stamp++;
+        }
+
+        void touch() {
+            stamp++;
+        }
+
+        @Override
+        public long stamp() {
+            stamps.incrementAndGet();
+            return stamp;
+        }
+
+        @Override
+        public long fingerprint() {
+            fingerprints.incrementAndGet();
+            return version;
+        }
+
+        @Override
+        public PhraseDictionary compile() throws IOException {
+            if (fail) {
+                throw new IOException("phrases not found");
+            }
+            return new PhraseTrie(new CharArraySet(Arrays.asList(phrases), false), '_');
+        }
+    }
+
+    private static String nextToken(AutoPhrasingTokenFilter filter) throws IOException {
+        assertTrue(filter.incrementToken());
+        return filter.getAttribute(CharTermAttribute.class).toString();
+    }
+
+    public void testReloadSwapsOnNextReset() throws Exception {
+        MutableSource source = new MutableSource("wheel chair");
+        PhraseDictionaryReloader reloader = new PhraseDictionaryReloader(source);
+        PhraseDictionary first = reloader.get();
+
+        WhitespaceTokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("wheel chair ramp"));
+        AutoPhrasingTokenFilter filter = new AutoPhrasingTokenFilter(tokenizer, reloader);
+        filter.setReplaceWhitespaceWith('_');
+        filter.reset();
+        assertEquals("wheel_chair", nextToken(filter));
+
+        source.update("chair ramp");
+        reloader.reload().get();
+        assertNotSame(first, reloader.get());
+
+        // the running stream finishes with the version it started with
+        assertEquals("ramp", nextToken(filter));
+        assertFalse(filter.incrementToken());
+        filter.end();
+        filter.close();
+
+        tokenizer.setReader(new StringReader("wheel chair ramp"));
+        filter.reset();
+        assertEquals("wheel", nextToken(filter));
+        assertEquals("chair_ramp", nextToken(filter));
+        filter.end();
+        filter.close();
+    }
+
+    public void testWatchReloadsChangedPhrases() throws Exception {
+        MutableSource source = new MutableSource("wheel chair");
+        PhraseDictionaryReloader reloader = new PhraseDictionaryReloader(source);
+        PhraseDictionary first = reloader.get();
+        assertEquals("nothing is checked before the phrases are watched", 0, source.stamps.get());
+        reloader.watch(10);
+        try {
+            Thread.sleep(50);
+            assertSame("unchanged phrases are not compiled again", first, reloader.get());
+            assertEquals("the content is read once, when the watch starts", 1, source.fingerprints.get());
+
+            source.touch();
+            for (int i = 0; i < 500 && source.fingerprints.get() == 1; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals("the content is read again once the stamp changed", 2, source.fingerprints.get());
+            assertSame("touched phrases are not compiled again", first, reloader.get());
+
+            source.update("wheel chair", "chair ramp");
+            for (int i = 0; i < 500 && reloader.get() == first; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, reloader.get().size());
+        } finally {
+            reloader.close();
+        }
+    }
+
+    public void testFailedReloadKeepsCurrentVersion() throws Exception {
+        MutableSource source = new MutableSource("wheel chair");
+        PhraseDictionaryReloader reloader = new PhraseDictionaryReloader(source);
+        PhraseDictionary first = reloader.get();
+
+        source.fail = true;
+        reloader.reload().get();
+        assertSame(first, reloader.get());
+        assertEquals("nothing is checked before the phrases are watched", 0, source.stamps.get());
+    }
+}
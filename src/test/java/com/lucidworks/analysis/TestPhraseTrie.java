@@ -0,0 +1,310 @@
+package com.lucidworks.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageTester;
+
+public class TestPhraseTrie extends TestCase {
+
+    private static PhraseTrie getTrie(String... phrases) {
+        return new PhraseTrie(new CharArraySet(Arrays.asList(phrases), false));
+    }
+
+    private static int termId(PhraseTrie trie, String term) {
+        char[] chars = term.toCharArray();
+        return trie.getTermId(chars, 0, chars.length);
+    }
+
+    private static PhraseTrie.Node walk(PhraseTrie trie, PhraseTrie.Node node, String... terms) {
+        for (String term : terms) {
+            if (node == null) {
+                return null;
+            }
+            node = node.getChild(termId(trie, term));
+        }
+        return node;
+    }
+
+    public void testEmptyTrie() throws Exception {
+        PhraseTrie trie = getTrie();
+        assertEquals(0, trie.size());
+        assertEquals(0, trie.getMaxPhraseLength());
+        assertNull(walk(trie, trie.getRoot(), "anything"));
+    }
+
+    public void testNullPhraseSet() throws Exception {
+        PhraseTrie trie = new PhraseTrie(null);
+        assertEquals(0, trie.size());
+    }
+
+    public void testSharedPrefix() throws Exception {
+        PhraseTrie trie = getTrie("corn bread", "corn bread dressing", "corn dog");
+        assertEquals(3, trie.size());
+        assertEquals(3, trie.getMaxPhraseLength());
+
+        PhraseTrie.Node corn = walk(trie, trie.getRoot(), "corn");
+        assertNotNull(corn);
+        assertFalse(corn.isTerminal());
+        assertEquals(1, corn.getDepth());
+        assertEquals(2, corn.getMaxRemainingDepth());
+
+        PhraseTrie.Node bread = walk(trie, corn, "bread");
+        assertTrue(bread.isTerminal());
+        assertEquals("corn bread", bread.getPhrase().toString());
+        assertEquals(1, bread.getMaxRemainingDepth());
+
+        PhraseTrie.Node dressing = walk(trie, bread, "dressing");
+        assertTrue(dressing.isTerminal());
+        assertEquals(0, dressing.getMaxRemainingDepth());
+
+        assertTrue(walk(trie, corn, "dog").isTerminal());
+    }
+
+    public void testNoMatchStopsWalk() throws Exception {
+        PhraseTrie trie = getTrie("wheel chair");
+        assertNull(walk(trie, trie.getRoot(), "chair"));
+        assertNull(walk(trie, trie.getRoot(), "wheel", "barrow"));
+    }
+
+    public void testRepeatedWhitespaceIgnored() throws Exception {
+        PhraseTrie trie = getTrie("wheel  chair");
+        assertTrue(walk(trie, trie.getRoot(), "wheel", "chair").isTerminal());
+    }
+
+    public void testWildcardChild() throws Exception {
+        PhraseTrie trie = getTrie("pay TOKEN? bill", "pay token? TOKEN? bill");
+        PhraseTrie.Node pay = walk(trie, trie.getRoot(), "pay");
+        assertNull(walk(trie, pay, "TOKEN?"));
+        PhraseTrie.Node wildcard = pay.getWildcardChild();
+        assertNotNull(wildcard);
+        assertEquals(3, pay.getMaxRemainingDepth());
+        assertTrue(walk(trie, wildcard, "bill").isTerminal());
+        assertTrue(walk(trie, wildcard.getWildcardChild(), "bill").isTerminal());
+        assertEquals(4, trie.getMaxPhraseLength());
+    }
+
+    public void testAutomatonFollowsFailureLinks() throws Exception {
+        PhraseTrie trie = getTrie("a b c d", "b c", "c");
+        PhraseTrie.Node state = trie.getRoot();
+        for (String term : new String[] {"a", "b", "c"}) {
+            state = trie.advance(state, termId(trie, term));
+        }
+        // still inside "a b c d", with "b c" and "c" ending here through the output links
+        assertEquals(3, state.getDepth());
+        assertFalse(state.isTerminal());
+        assertEquals("b c", state.getOutputLink().getPhrase().toString());
+        assertEquals("c", state.getOutputLink().getOutputLink().getPhrase().toString());
+        assertNull(state.getOutputLink().getOutputLink().getOutputLink());
+
+        assertSame(trie.getRoot(), trie.advance(state, termId(trie, "e")));
+    }
+
+    public void testWildcardPhrasesAreNotLiteral() throws Exception {
+        PhraseTrie trie = getTrie("pay TOKEN? bill", "pay bill");
+        PhraseTrie.Node pay = walk(trie, trie.getRoot(), "pay");
+        assertTrue(walk(trie, pay, "bill").isLiteralTerminal());
+        assertFalse(walk(trie, pay.getWildcardChild(), "bill").isLiteralTerminal());
+        assertTrue(pay.leadsToWildcardPhrase());
+        assertFalse(walk(trie, pay, "bill").leadsToWildcardPhrase());
+        assertFalse(getTrie("pay bill").getRoot().leadsToWildcardPhrase());
+    }
+
+    public void testVocabularyInterned() throws Exception {
+        PhraseTrie trie = getTrie("corn bread", "bread TOKEN? corn", "corn dog");
+        assertEquals(3, trie.getVocabularySize());
+        assertEquals(termId(trie, "corn"), termId(trie, "corn"));
+        assertTrue(termId(trie, "corn") != termId(trie, "bread"));
+        assertEquals(PhraseTrie.NO_TERM, termId(trie, "TOKEN?"));
+        assertEquals(PhraseTrie.NO_TERM, termId(trie, "muffin"));
+        assertNull(trie.getRoot().getChild(PhraseTrie.NO_TERM));
+
+        char[] buffer = "xxcornxx".toCharArray();
+        assertEquals(termId(trie, "corn"), trie.getTermId(buffer, 2, 4));
+    }
+
+    public void testIgnoreCaseVocabulary() throws Exception {
+        PhraseTrie trie = new PhraseTrie(new CharArraySet(Arrays.asList("corn bread"), false), ' ', true);
+        assertTrue(trie.isIgnoreCase());
+        assertEquals(termId(trie, "corn"), termId(trie, "CoRn"));
+        assertTrue(walk(trie, trie.getRoot(), "Corn", "BREAD").isTerminal());
+        assertEquals(PhraseTrie.NO_TERM, termId(getTrie("corn bread"), "Corn"));
+    }
+
+    public void testIgnoreCaseKeepsPhraseTerms() throws Exception {
+        PhraseTrie trie = new PhraseTrie(new CharArraySet(Arrays.asList("Corn Bread"), false), ' ', true);
+        assertEquals("Corn Bread", walk(trie, trie.getRoot(), "corn", "bread").getPhrase().toString());
+    }
+
+    static CharArraySet randomPhrases(Random random, int count) {
+        String[] words = new String[60];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = "w" + i;
+        }
+        List<String> phrases = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder phrase = new StringBuilder();
+            int length = 1 + random.nextInt(5);
+            for (int t = 0; t < length; t++) {
+                if (t > 0) {
+                    phrase.append(' ');
+                }
+                phrase.append(random.nextInt(10) == 0 ? "TOKEN?" : words[random.nextInt(words.length)]);
+            }
+            phrases.add(phrase.toString());
+        }
+        return new CharArraySet(phrases, false);
+    }
+
+    private static void assertSameNode(PhraseTrie expected, PhraseTrie.Node expectedNode, PhraseTrie.Node actualNode) {
+        if (expectedNode == null) {
+            assertNull(actualNode);
+            return;
+        }
+        assertNotNull(actualNode);
+        assertEquals(expectedNode.getDepth(), actualNode.getDepth());
+        assertEquals(expectedNode.getMaxRemainingDepth(), actualNode.getMaxRemainingDepth());
+        assertEquals(expectedNode.leadsToWildcardPhrase(), actualNode.leadsToWildcardPhrase());
+        assertEquals(expectedNode.isTerminal(), actualNode.isTerminal());
+        if (expectedNode.isTerminal()) {
+            assertEquals(expectedNode.getPhrase().toString(), actualNode.getPhrase().toString());
+        }
+        assertEquals(expectedNode.getOutputLink() == null, actualNode.getOutputLink() == null);
+        if (expectedNode.getOutputLink() != null) {
+            assertEquals(expectedNode.getOutputLink().getPhrase().toString(), actualNode.getOutputLink().getPhrase().toString());
+        }
+        for (int termId = 0; termId < expected.getVocabularySize(); termId++) {
+            assertSameNode(expected, expectedNode.getChild(termId), actualNode.getChild(termId));
+        }
+        assertSameNode(expected, expectedNode.getWildcardChild(), actualNode.getWildcardChild());
+    }
+
+    public void testParallelBuildMatchesSerialBuild() throws Exception {
+        Random random = new Random(42);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int round = 0; round < 5; round++) {
+                CharArraySet phrases = randomPhrases(random, 2000);
+                PhraseTrie serial = new PhraseTrie(phrases, '_', false);
+                PhraseTrie parallel = new PhraseTrie(phrases, '_', false, pool);
+
+                assertEquals(serial.size(), parallel.size());
+                assertEquals(serial.getMaxPhraseLength(), parallel.getMaxPhraseLength());
+                assertEquals(serial.getVocabularySize(), parallel.getVocabularySize());
+                for (int i = 0; i < 60; i++) {
+                    assertEquals(termId(serial, "w" + i), termId(parallel, "w" + i));
+                }
+                assertSameNode(serial, serial.getRoot(), parallel.getRoot());
+            }
+            assertEquals(0, new PhraseTrie(new CharArraySet(0, false), ' ', false, pool).size());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testPhraseOrdinals() throws Exception {
+        PhraseTrie trie = getTrie("wheel chair", "wheel chair ramp", "new york", "pay TOKEN? bill");
+        boolean[] seen = new boolean[trie.size()];
+        List<String> phrases = new ArrayList<>();
+        trie.forEachPhrase((phrase, ordinal) -> {
+            assertFalse(seen[ordinal]);
+            seen[ordinal] = true;
+            phrases.add(phrase.toString());
+        });
+        assertEquals(4, phrases.size());
+        assertTrue(phrases.contains("wheel chair ramp"));
+        assertTrue(phrases.contains("pay TOKEN? bill"));
+    }
+
+    /**
+     * @return every phrase of the dictionary with its ordinal, in the order they are visited
+     */
+    static List<String> phrasesWithOrdinals(PhraseDictionary dictionary) throws Exception {
+        List<String> phrases = new ArrayList<>();
+        dictionary.forEachPhrase((phrase, ordinal) -> phrases.add(ordinal + ":" + phrase));
+        return phrases;
+    }
+
+    public void testParallelBuildKeepsOrdinals() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CharArraySet phrases = randomPhrases(new Random(42), 2000);
+            assertEquals(phrasesWithOrdinals(new PhraseTrie(phrases, '_', false)),
+                    phrasesWithOrdinals(new PhraseTrie(phrases, '_', false, pool)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testHitCountsAddRepeatedPhrasesOnce() throws Exception {
+        PhraseHitCounts counts = getTrie("wheel chair", "new york", "pay bill").enableHitCounts();
+        // only the first 6 ordinals are hits
+        int[] hits = {2, 0, 2, 2, 1, 0, 1};
+        counts.add(hits, 6);
+        assertEquals(2, counts.get(0));
+        assertEquals(1, counts.get(1));
+        assertEquals(3, counts.get(2));
+        counts.add(new int[] {1}, 1);
+        assertEquals(2, counts.get(1));
+    }
+
+    public void testVocabularyFilter() throws Exception {
+        PhraseTrie trie = getTrie("wheel chair", "pay TOKEN? bill");
+        assertNotNull(trie.getVocabularyFilter());
+        assertEquals(PhraseTrie.NO_TERM, termId(trie, "fox"));
+        assertTrue(termId(trie, "chair") != PhraseTrie.NO_TERM);
+
+        PhraseMatcher matcher = trie.newMatcher();
+        TokenBuffer tokens = new TokenBuffer();
+        for (String term : new String[]{"the", "quick", "fox"}) {
+            tokens.add(term.toCharArray(), term.length(), 0, 0, 1);
+            matcher.tokenAdded(tokens);
+        }
+        assertFalse(matcher.mayMatch());
+        tokens.add("bill".toCharArray(), 4, 0, 0, 1);
+        matcher.tokenAdded(tokens);
+        assertTrue(matcher.mayMatch());
+        matcher.reset();
+        assertFalse(matcher.mayMatch());
+
+        // a phrase of wildcards only can match any document
+        PhraseTrie wildcards = getTrie("wheel chair", "TOKEN? TOKEN?");
+        assertNull(wildcards.getVocabularyFilter());
+        assertTrue(wildcards.newMatcher().mayMatch());
+    }
+
+    public void testRamBytesUsed() throws Exception {
+        List<String> phrases = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            phrases.add("product " + (i % 300) + " model " + i + (i % 10 == 0 ? " TOKEN? series" : ""));
+        }
+        PhraseTrie trie = new PhraseTrie(new CharArraySet(phrases, false), '_');
+
+        // the accounted heap is that actually reachable from the trie, within the estimates
+        long actual = RamUsageTester.sizeOf(trie);
+        assertEquals(actual, trie.ramBytesUsed(), actual * 0.2);
+
+        long children = 0;
+        List<String> names = new ArrayList<>();
+        for (Accountable child : trie.getChildResources()) {
+            assertTrue(child.ramBytesUsed() > 0);
+            children += child.ramBytesUsed();
+            names.add(child.toString());
+        }
+        assertEquals(Arrays.asList("nodes", "phrases", "vocabulary", "vocabulary filter"), names);
+        assertTrue(children < trie.ramBytesUsed());
+
+        // counting hits costs 8 bytes per phrase
+        long uncounted = trie.ramBytesUsed();
+        trie.enableHitCounts();
+        assertTrue(trie.ramBytesUsed() >= uncounted + 8 * trie.size());
+        assertEquals(5, trie.getChildResources().size());
+
+        assertTrue(getTrie("wheel chair").ramBytesUsed() < trie.ramBytesUsed());
+    }
+}
@@ -0,0 +1,96 @@
+package com.lucidworks.analysis;
+
+import junit.framework.TestCase;
+
+public class TestTokenBuffer extends TestCase {
+
+    private static String term(TokenBuffer tokens, int index) {
+        return new String(tokens.getTermBuffer(), tokens.getTermOffset(index), tokens.getTermLength(index));
+    }
+
+    private static void add(TokenBuffer tokens, String term, int start, int increment) {
+        // the input stream buffer is usually longer than the term
+        char[] buffer = (term + "#####").toCharArray();
+        tokens.add(buffer, term.length(), start, start + term.length(), increment);
+    }
+
+    public void testAdd() throws Exception {
+        TokenBuffer tokens = new TokenBuffer();
+        assertTrue(tokens.isEmpty());
+        add(tokens, "wheel", 0, 1);
+        add(tokens, "chair", 6, 2);
+
+        assertEquals(2, tokens.size());
+        assertEquals("wheel", term(tokens, 0));
+        assertEquals("chair", term(tokens, 1));
+        assertEquals(6, tokens.getStartOffset(1));
+        assertEquals(11, tokens.getEndOffset(1));
+        assertEquals(1, tokens.getPositionIncrement(0));
+        assertEquals(2, tokens.getPositionIncrement(1));
+    }
+
+    public void testGrow() throws Exception {
+        TokenBuffer tokens = new TokenBuffer();
+        for (int i = 0; i < 1000; i++) {
+            add(tokens, "term" + i, i * 10, 1);
+        }
+        assertEquals(1000, tokens.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("term" + i, term(tokens, i));
+            assertEquals(i * 10, tokens.getStartOffset(i));
+        }
+    }
+
+    public void testRemoveFirst() throws Exception {
+        TokenBuffer tokens = new TokenBuffer();
+        add(tokens, "some", 0, 1);
+        add(tokens, "wheel", 5, 1);
+        add(tokens, "chair", 11, 3);
+        tokens.removeFirst(2);
+
+        assertEquals(1, tokens.size());
+        assertEquals("chair", term(tokens, 0));
+        assertEquals(11, tokens.getStartOffset(0));
+        assertEquals(3, tokens.getPositionIncrement(0));
+
+        add(tokens, "ramp", 17, 1);
+        assertEquals("ramp", term(tokens, 1));
+
+        tokens.removeFirst(5);
+        assertTrue(tokens.isEmpty());
+    }
+
+    public void testClear() throws Exception {
+        TokenBuffer tokens = new TokenBuffer();
+        add(tokens, "wheel", 0, 1);
+        tokens.clear();
+        assertTrue(tokens.isEmpty());
+        add(tokens, "chair", 0, 1);
+        assertEquals(1, tokens.size());
+        assertEquals("chair", term(tokens, 0));
+    }
+
+    public void testGraph() throws Exception {
+        TokenBuffer tokens = new TokenBuffer();
+        add(tokens, "new", 0, 1);
+        tokens.add("ny".toCharArray(), 2, 0, 8, 0, 2);
+        add(tokens, "york", 4, 1);
+        add(tokens, "city", 9, 1);
+
+        assertEquals(0, tokens.getGroup(1));
+        assertTrue(tokens.isStacked(1));
+        assertEquals(2, tokens.getGroupEnd(0));
+        assertEquals(2, tokens.getNextGroupStart(0));
+        // ny spans two positions, it is followed by city
+        assertEquals(3, tokens.getNextGroupStart(1));
+        assertEquals(-1, tokens.getNextGroupStart(3));
+        assertEquals(2, tokens.getLastGroup());
+
+        tokens.setConsumed(2);
+        tokens.removeFirst(2);
+        assertTrue(tokens.isConsumed(0));
+        assertFalse(tokens.isStacked(0));
+        assertEquals(2, tokens.getGroup(1));
+        assertEquals(2, tokens.getPosition(1));
+    }
+}
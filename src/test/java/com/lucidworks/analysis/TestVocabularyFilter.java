@@ -0,0 +1,79 @@
+package com.lucidworks.analysis;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.apache.lucene.util.RamUsageTester;
+
+public class TestVocabularyFilter extends TestCase {
+
+    private static boolean mightContain(VocabularyFilter filter, String term) {
+        // the term in the middle of a larger buffer, as it is in the token buffer
+        char[] buffer = ("xx" + term + "yy").toCharArray();
+        return filter.mightContain(buffer, 2, term.length());
+    }
+
+    private static String randomTerm(Random random) {
+        char[] term = new char[3 + random.nextInt(8)];
+        for (int i = 0; i < term.length; i++) {
+            term[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(term);
+    }
+
+    public void testNoFalseNegativesFewFalsePositives() {
+        Random random = new Random(42);
+        Set<String> terms = new HashSet<>();
+        while (terms.size() < 10000) {
+            terms.add(randomTerm(random));
+        }
+        VocabularyFilter filter = new VocabularyFilter(terms.size(), false);
+        for (String term : terms) {
+            filter.add(term.toCharArray());
+        }
+        for (String term : terms) {
+            assertTrue(term, mightContain(filter, term));
+        }
+
+        int falsePositives = 0;
+        int tries = 0;
+        while (tries < 100000) {
+            String term = randomTerm(random);
+            if (!terms.contains(term)) {
+                tries++;
+                if (mightContain(filter, term)) {
+                    falsePositives++;
+                }
+            }
+        }
+        assertTrue("false positive rate " + falsePositives / (double) tries, falsePositives < tries * 0.03);
+    }
+
+    public void testIgnoreCase() {
+        VocabularyFilter filter = new VocabularyFilter(2, true);
+        filter.add("Wheel".toCharArray());
+        filter.add("\uD801\uDC00bc".toCharArray());
+        assertTrue(mightContain(filter, "WHEEL"));
+        assertTrue(mightContain(filter, "wheel"));
+        // supplementary code points are folded too
+        assertTrue(mightContain(filter, "\uD801\uDC28BC"));
+
+        VocabularyFilter caseSensitive = new VocabularyFilter(1, false);
+        caseSensitive.add("Wheel".toCharArray());
+        assertTrue(mightContain(caseSensitive, "Wheel"));
+        assertFalse(mightContain(caseSensitive, "wheel"));
+    }
+
+    public void testEmpty() {
+        VocabularyFilter filter = new VocabularyFilter(0, false);
+        assertFalse(mightContain(filter, "wheel"));
+        assertFalse(mightContain(filter, ""));
+    }
+
+    public void testRamBytesUsed() {
+        VocabularyFilter filter = new VocabularyFilter(10000, false);
+        assertEquals(RamUsageTester.sizeOf(filter), filter.ramBytesUsed());
+        assertTrue(filter.ramBytesUsed() >= 10000 * 10 / 8);
+    }
+}